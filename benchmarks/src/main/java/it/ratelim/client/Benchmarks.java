@@ -0,0 +1,25 @@
+package it.ratelim.client;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * java -jar target/benchmarks.jar [jmh options]
+ * <p>
+ * Same options as the stock JMH main, but always runs with the GC profiler so allocation rate
+ * (gc.alloc.rate.norm, bytes per op) is reported next to throughput.
+ */
+public class Benchmarks {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    new Runner(new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .addProfiler(GCProfiler.class)
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,94 @@
+package it.ratelim.client;
+
+import com.google.protobuf.ByteString;
+import it.ratelim.client.util.BinaryRedisCodec;
+import it.ratelim.data.RateLimitProtos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * request encoding and the redis codec. The codec keeps decode buffers, so each thread gets its own
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class CodecBenchmark {
+  private static final String GROUP = "events:pageview:homepage";
+  private static final ByteString PARTITION_KEY = ByteString.copyFromUtf8("user:123123");
+
+  private BinaryRedisCodec codec;
+  private String key;
+  private byte[] value;
+  private ByteBuffer encodedKey;
+  private ByteBuffer encodedValue;
+  private byte[] encodedRequest;
+
+  @Setup
+  public void setup() {
+    codec = new BinaryRedisCodec();
+    key = "it.ratelim.java.1.featureflags";
+    final RateLimitProtos.FeatureFlags.Builder featureFlags = RateLimitProtos.FeatureFlags.newBuilder();
+    for (int i = 0; i < 50; i++) {
+      featureFlags.addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("feature-" + i).setPct(0.5));
+    }
+    value = featureFlags.build().toByteArray();
+    encodedKey = codec.encodeKey(key);
+    encodedValue = codec.encodeValue(value);
+    encodedRequest = buildLimitRequest().toByteArray();
+  }
+
+  @Benchmark
+  public RateLimitProtos.LimitRequest buildLimitRequest() {
+    return RateLimitProtos.LimitRequest.newBuilder()
+        .addGroups(GROUP)
+        .setPartitionKey(PARTITION_KEY)
+        .setAcquireAmount(1)
+        .build();
+  }
+
+  @Benchmark
+  public byte[] buildAndSerializeLimitRequest() {
+    return buildLimitRequest().toByteArray();
+  }
+
+  @Benchmark
+  public RateLimitProtos.LimitRequest parseLimitRequest() throws Exception {
+    return RateLimitProtos.LimitRequest.parseFrom(encodedRequest);
+  }
+
+  @Benchmark
+  public ByteBuffer redisEncodeKey() {
+    return codec.encodeKey(key);
+  }
+
+  @Benchmark
+  public String redisDecodeKey() {
+    return codec.decodeKey(encodedKey.duplicate());
+  }
+
+  @Benchmark
+  public ByteBuffer redisEncodeValue() {
+    return codec.encodeValue(value);
+  }
+
+  @Benchmark
+  public byte[] redisDecodeValue() {
+    return codec.decodeValue(encodedValue.duplicate());
+  }
+}
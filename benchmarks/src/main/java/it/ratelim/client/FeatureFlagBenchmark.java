@@ -0,0 +1,132 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * flag evaluation, from the single flag evaluators up to ApiClient.featureIsOnFor against a warm snapshot
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class FeatureFlagBenchmark {
+  private static final int FLAG_COUNT = 200;
+  private static final int KEY_COUNT = 1024;
+
+  private RateLimitProtos.FeatureFlag featureFlag;
+  private FeatureFlagWrapper wrapper;
+  private CompiledFeatureFlag compiled;
+  private FeatureFlagSnapshot snapshot;
+  private String[] lookupKeys;
+  private String[] features;
+  private List<String> attributes;
+
+  private StubRateLimitServer server;
+  private ApiClient apiClient;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    final RateLimitProtos.FeatureFlags.Builder featureFlags = RateLimitProtos.FeatureFlags.newBuilder();
+    features = new String[FLAG_COUNT];
+    for (int i = 0; i < FLAG_COUNT; i++) {
+      features[i] = "feature-" + i;
+      featureFlags.addFlags(RateLimitProtos.FeatureFlag.newBuilder()
+          .setAccountId(1)
+          .setFeature(features[i])
+          .setPct(0.5)
+          .addWhitelisted("vip-" + i));
+    }
+    featureFlag = featureFlags.getFlags(0);
+    wrapper = new FeatureFlagWrapper(featureFlag);
+    compiled = new CompiledFeatureFlag(featureFlag);
+    snapshot = new FeatureFlagSnapshot(featureFlags.build());
+
+    lookupKeys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      lookupKeys[i] = "user:" + i * 7919;
+    }
+    attributes = Collections.singletonList("plan:free");
+
+    final byte[] flagBytes = featureFlags.build().toByteArray();
+    server = new StubRateLimitServer().handle("featureflags", body -> flagBytes);
+    apiClient = server.clientBuilder().build();
+    apiClient.featureIsOn(features[0]);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    apiClient.close();
+    server.close();
+  }
+
+  @Benchmark
+  public boolean wrapperIsOnFor() {
+    return wrapper.isOnFor(Optional.of(lookupKey()), attributes);
+  }
+
+  @Benchmark
+  public boolean compiledIsOnFor() {
+    return compiled.isOnFor(lookupKey(), attributes);
+  }
+
+  @Benchmark
+  public CompiledFeatureFlag snapshotLookup() {
+    return snapshot.get(feature());
+  }
+
+  @Benchmark
+  public boolean featureIsOnFor() {
+    return apiClient.featureIsOnFor(feature(), lookupKey());
+  }
+
+  /**
+   * every flag for one key, compare with FLAG_COUNT times featureIsOnFor
+   */
+  @Benchmark
+  public FeatureFlagResults evaluateAll() {
+    return apiClient.evaluateAll(lookupKey(), attributes);
+  }
+
+  @Benchmark
+  public int featureIsOnForEachFlag() {
+    final String lookupKey = lookupKey();
+    int on = 0;
+    for (String feature : features) {
+      if (apiClient.featureIsOnFor(feature, lookupKey)) {
+        on++;
+      }
+    }
+    return on;
+  }
+
+  private String lookupKey() {
+    return lookupKeys[ThreadLocalRandom.current().nextInt(KEY_COUNT)];
+  }
+
+  private String feature() {
+    return features[ThreadLocalRandom.current().nextInt(FLAG_COUNT)];
+  }
+}
@@ -0,0 +1,53 @@
+package it.ratelim.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * what heavy hitter tracking adds to each check: CountMinTopK.add over a million distinct keys, a few of them hot
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class HeavyHitterBenchmark {
+  private static final int KEY_COUNT = 1 << 20;
+  private static final int HOT_COUNT = 16;
+
+  private CountMinTopK sketch;
+  private String[] keys;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    sketch = new CountMinTopK(100);
+    keys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      keys[i] = "events:pageview:" + i;
+      keys[i].hashCode();
+    }
+  }
+
+  @Benchmark
+  public void add() {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    // half the traffic on HOT_COUNT keys, the rest spread over all of them
+    final int index = random.nextBoolean() ? random.nextInt(HOT_COUNT) : random.nextInt(KEY_COUNT);
+    sketch.add(keys[index]);
+  }
+}
@@ -0,0 +1,91 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * full limit check round trips over loopback to the in-process stub. Measures client overhead plus the
+ * local http stack, not the service
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class LimitCheckBenchmark {
+  private static final byte[] PASSED = RateLimitProtos.LimitResponse.newBuilder()
+      .setPassed(true)
+      .setAmount(1)
+      .build().toByteArray();
+
+  /**
+   * 0 checks each call on its own request, anything else turns on batching with that window
+   */
+  @Param({"0", "2"})
+  public long batchWindowMillis;
+
+  private StubRateLimitServer server;
+  private ApiClient apiClient;
+  private PreparedLimitCheck prepared;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    server = new StubRateLimitServer()
+        .handle("limitcheck", body -> PASSED)
+        .handle("limitcheck/batch", body -> {
+          try {
+            final int count = RateLimitProtos.LimitRequests.parseFrom(body).getRequestsCount();
+            final RateLimitProtos.LimitResponses.Builder responses = RateLimitProtos.LimitResponses.newBuilder();
+            for (int i = 0; i < count; i++) {
+              responses.addResponses(RateLimitProtos.LimitResponse.newBuilder().setPassed(true).setAmount(1));
+            }
+            return responses.build().toByteArray();
+          } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+          }
+        });
+    apiClient = server.clientBuilder()
+        .setLimitCheckBatchWindowMillis(batchWindowMillis)
+        .build();
+    prepared = apiClient.prepare("events:pageview");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    apiClient.close();
+    server.close();
+  }
+
+  @Benchmark
+  public boolean isPass() {
+    return apiClient.isPass("events:pageview");
+  }
+
+  @Benchmark
+  public boolean preparedIsPass() {
+    return prepared.isPass();
+  }
+
+  @Benchmark
+  public boolean isPassAsync() throws Exception {
+    return apiClient.isPassAsync("events:pageview").get();
+  }
+}
@@ -0,0 +1,245 @@
+package it.ratelim.loadtest;
+
+import it.ratelim.client.ApiClient;
+import it.ratelim.data.RateLimitProtos;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop limit check traffic: check i is due at start + i / rate whether or not earlier ones have answered, so a
+ * slow client shows up as latency instead of quietly lowering the offered load.
+ * Two latencies are recorded for every check. Response time runs from when the check was due, which is what a caller
+ * arriving on schedule would have seen (corrected for coordinated omission). Service time runs from when it was
+ * actually sent.
+ * <ul>
+ * <li>async: one pacing thread fires limitCheckAsync at each due time</li>
+ * <li>sync: workers take the next due time, wait for it and call limitCheck; when they are all blocked, checks
+ * start late and the lateness is counted in response time</li>
+ * </ul>
+ */
+class LoadGenerator {
+  private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+  private static final long MAX_BUSY_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private final ApiClient apiClient;
+  private final RateLimitProtos.OnFailure onFailure;
+  private final int groupCount;
+  private final double returnFraction;
+
+  private final Recorder responseTimes = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+  private final Recorder serviceTimes = new Recorder(HIGHEST_TRACKABLE_MICROS, 3);
+  private final LongAdder passed = new LongAdder();
+  private final LongAdder denied = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder outstanding = new LongAdder();
+
+  LoadGenerator(ApiClient apiClient, RateLimitProtos.OnFailure onFailure, int groupCount, double returnFraction) {
+    this.apiClient = apiClient;
+    this.onFailure = onFailure;
+    this.groupCount = Math.max(1, groupCount);
+    this.returnFraction = returnFraction;
+  }
+
+  /**
+   * @param workers 0 for async checks, otherwise the number of threads making blocking checks
+   */
+  Report run(double rate, long warmupSecs, long durationSecs, long reportEverySecs, int workers, PrintStream out) throws InterruptedException {
+    final double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    final long start = System.nanoTime();
+    final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSecs);
+    final long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSecs);
+    final AtomicLong nextCheck = new AtomicLong();
+
+    final List<Thread> threads = new ArrayList<>();
+    if (workers <= 0) {
+      threads.add(new Thread(() -> {
+        for (long i = 0; ; i++) {
+          final long due = start + (long) (i * intervalNanos);
+          if (due >= end) {
+            return;
+          }
+          waitUntil(due);
+          checkAsync(due);
+        }
+      }, "loadtest-pacer"));
+    } else {
+      for (int w = 0; w < workers; w++) {
+        threads.add(new Thread(() -> {
+          while (true) {
+            final long due = start + (long) (nextCheck.getAndIncrement() * intervalNanos);
+            if (due >= end) {
+              return;
+            }
+            waitUntil(due);
+            checkSync(due);
+          }
+        }, "loadtest-worker-" + w));
+      }
+    }
+    threads.forEach(Thread::start);
+
+    final Report report = new Report(rate, durationSecs);
+    boolean measuring = measureFrom <= start;
+    long intervalStart = start;
+    long passedBefore = 0;
+    long deniedBefore = 0;
+    long failedBefore = 0;
+    while (intervalStart < end) {
+      long nextReport = Math.min(end, intervalStart + TimeUnit.SECONDS.toNanos(reportEverySecs));
+      if (!measuring && measureFrom < nextReport) {
+        // warmup gets an interval of its own, so nothing from it is counted
+        nextReport = measureFrom;
+      }
+      TimeUnit.NANOSECONDS.sleep(Math.max(0, nextReport - System.nanoTime()));
+      final long intervalEnd = Math.max(nextReport, System.nanoTime());
+      final Histogram responses = responseTimes.getIntervalHistogram();
+      final Histogram services = serviceTimes.getIntervalHistogram();
+      final long passedNow = passed.sum();
+      final long deniedNow = denied.sum();
+      final long failedNow = failed.sum();
+      final String phase = measuring ? "" : " (warmup)";
+      out.printf("%6.1fs%s %8.0f checks/s  p50 %s  p99 %s  p99.9 %s  max %s  passed %d denied %d failed %d in flight %d%n",
+          (intervalEnd - start) / 1e9, phase,
+          responses.getTotalCount() / ((intervalEnd - intervalStart) / 1e9),
+          millis(responses.getValueAtPercentile(50)), millis(responses.getValueAtPercentile(99)),
+          millis(responses.getValueAtPercentile(99.9)), millis(responses.getMaxValue()),
+          passedNow - passedBefore, deniedNow - deniedBefore, failedNow - failedBefore, outstanding.sum());
+      if (measuring) {
+        report.add(responses, services, passedNow - passedBefore, deniedNow - deniedBefore, failedNow - failedBefore);
+      } else if (intervalEnd >= measureFrom) {
+        measuring = true;
+      }
+      intervalStart = intervalEnd;
+      passedBefore = passedNow;
+      deniedBefore = deniedNow;
+      failedBefore = failedNow;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // checks still in flight at the end were due inside the run, so wait for them to count
+    final long drainUntil = System.nanoTime() + DRAIN_NANOS;
+    while (outstanding.sum() > 0 && System.nanoTime() < drainUntil) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    report.add(responseTimes.getIntervalHistogram(), serviceTimes.getIntervalHistogram(),
+        passed.sum() - passedBefore, denied.sum() - deniedBefore, failed.sum() - failedBefore);
+    if (outstanding.sum() > 0) {
+      out.printf("%d checks still unanswered after %ds%n", outstanding.sum(), TimeUnit.NANOSECONDS.toSeconds(DRAIN_NANOS));
+    }
+    return report;
+  }
+
+  private void checkAsync(long due) {
+    final long sent = System.nanoTime();
+    outstanding.increment();
+    final CompletableFuture<RateLimitProtos.LimitResponse> check;
+    try {
+      check = apiClient.limitCheckAsync(limitRequest(), onFailure);
+    } catch (RuntimeException e) {
+      record(due, sent, null, e);
+      return;
+    }
+    check.whenComplete((limitResponse, e) -> record(due, sent, limitResponse, e));
+  }
+
+  private void checkSync(long due) {
+    final long sent = System.nanoTime();
+    outstanding.increment();
+    try {
+      record(due, sent, apiClient.limitCheck(limitRequest(), onFailure), null);
+    } catch (RuntimeException e) {
+      record(due, sent, null, e);
+    }
+  }
+
+  private void record(long due, long sent, RateLimitProtos.LimitResponse limitResponse, Throwable e) {
+    final long now = System.nanoTime();
+    outstanding.decrement();
+    responseTimes.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, TimeUnit.NANOSECONDS.toMicros(now - due)));
+    serviceTimes.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, TimeUnit.NANOSECONDS.toMicros(now - sent)));
+    if (e != null) {
+      failed.increment();
+    } else if (limitResponse.getPassed()) {
+      passed.increment();
+      if (returnFraction > 0 && ThreadLocalRandom.current().nextDouble() < returnFraction) {
+        apiClient.limitReturnLater(limitResponse);
+      }
+    } else {
+      denied.increment();
+    }
+  }
+
+  private RateLimitProtos.LimitRequest limitRequest() {
+    return RateLimitProtos.LimitRequest.newBuilder()
+        .addGroups("loadtest:" + ThreadLocalRandom.current().nextInt(groupCount))
+        .build();
+  }
+
+  /**
+   * parks for long waits and spins the last stretch, since parkNanos alone oversleeps by tens of microseconds
+   */
+  private static void waitUntil(long due) {
+    long remaining;
+    while ((remaining = due - System.nanoTime()) > 0) {
+      if (remaining > MAX_BUSY_SPIN_NANOS) {
+        LockSupport.parkNanos(remaining - MAX_BUSY_SPIN_NANOS);
+      }
+    }
+  }
+
+  static String millis(long micros) {
+    return String.format("%7.2fms", micros / 1000.0);
+  }
+
+  /**
+   * totals over the measured part of the run
+   */
+  static class Report {
+    private final double targetRate;
+    private final long durationSecs;
+    private final Histogram responseTimes = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+    private final Histogram serviceTimes = new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+    private long passed;
+    private long denied;
+    private long failed;
+
+    Report(double targetRate, long durationSecs) {
+      this.targetRate = targetRate;
+      this.durationSecs = durationSecs;
+    }
+
+    void add(Histogram responses, Histogram services, long passed, long denied, long failed) {
+      responseTimes.add(responses);
+      serviceTimes.add(services);
+      this.passed += passed;
+      this.denied += denied;
+      this.failed += failed;
+    }
+
+    long getChecks() {
+      return passed + denied + failed;
+    }
+
+    void print(PrintStream out) {
+      out.printf("target %.0f checks/s, achieved %.0f checks/s%n", targetRate, responseTimes.getTotalCount() / (double) durationSecs);
+      out.printf("passed %d, denied %d, failed (exceptions) %d%n", passed, denied, failed);
+      out.printf("%-10s %12s %12s%n", "percentile", "response", "service");
+      for (double percentile : new double[]{50, 90, 99, 99.9, 99.99, 100}) {
+        out.printf("%-10s %12s %12s%n", percentile == 100 ? "max" : percentile,
+            millis(responseTimes.getValueAtPercentile(percentile)), millis(serviceTimes.getValueAtPercentile(percentile)));
+      }
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package it.ratelim.loadtest;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import it.ratelim.client.ApiClient;
+import it.ratelim.client.StubRateLimitServer;
+import it.ratelim.client.StubRateLimitServer.Faults;
+import it.ratelim.data.RateLimitProtos;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drives an ApiClient at a fixed rate against a StubRateLimitServer with faults and reports throughput, latency percentiles and how
+ * often each OnFailure fallback was taken. Run with --help for the options; a long --duration makes it a soak test.
+ */
+public class LoadTest {
+  private static final byte[] OK = "ok".getBytes();
+  private static final long DENIAL_RESET_MILLIS = 1000;
+  private static final String[][] OPTIONS = {
+      {"rate", "50000", "checks per second offered"},
+      {"duration", "60", "seconds measured, after warmup"},
+      {"warmup", "10", "seconds run before measuring"},
+      {"report-every", "5", "seconds between interval reports"},
+      {"workers", "0", "0 for async checks, otherwise threads making blocking checks"},
+      {"groups", "1000", "distinct groups checked"},
+      {"on-failure", "LOG_AND_PASS", "LOG_AND_PASS, LOG_AND_FAIL, THROW or LOCAL_APPROXIMATE"},
+      {"return-fraction", "0", "fraction of passed checks returned with limitReturnLater"},
+      {"latency", "0", "ms the stub adds to each request"},
+      {"distribution", "CONSTANT", "CONSTANT, UNIFORM or EXPONENTIAL added latency"},
+      {"error-rate", "0", "fraction of requests answered 503"},
+      {"drop-rate", "0", "fraction of requests whose connection is dropped without a response"},
+      {"deny-rate", "0", "fraction of limit checks denied"},
+      {"flags", "50", "feature flags served by the stub"},
+      {"batch-window", "0", "client limitCheckBatchWindowMillis"},
+      {"max-connections", "200", "client maxConnections and maxConnectionsPerRoute"},
+      {"latency-budget", "0", "client latencyBudgetMillis, 0 for none"},
+      {"circuit-breaker-error-rate", "0", "client circuitBreakerErrorRate, 0 for none"},
+      {"local-limiter-nodes", "0", "client localLimiterNodeCount, for LOCAL_APPROXIMATE"},
+  };
+
+  public static void main(String[] args) throws Exception {
+    final Map<String, String> options = parse(args);
+    if (options == null) {
+      usage(System.err);
+      System.exit(1);
+      return;
+    }
+
+    final Faults faults = new Faults()
+        .setLatencyMillis(Long.parseLong(options.get("latency")))
+        .setDistribution(Faults.Distribution.valueOf(options.get("distribution").toUpperCase()))
+        .setErrorRate(Double.parseDouble(options.get("error-rate")))
+        .setDropRate(Double.parseDouble(options.get("drop-rate")))
+        .setDenyRate(Double.parseDouble(options.get("deny-rate")));
+    final RateLimitProtos.OnFailure onFailure = RateLimitProtos.OnFailure.valueOf(options.get("on-failure").toUpperCase());
+    final int maxConnections = Integer.parseInt(options.get("max-connections"));
+    final MetricRegistry metricRegistry = new MetricRegistry();
+    final PrintStream out = System.out;
+
+    out.println("stub: " + faults);
+    out.println("client: " + options);
+    try (StubRateLimitServer server = serveApi(new StubRateLimitServer(faults), Integer.parseInt(options.get("flags")));
+         ApiClient apiClient = server.clientBuilder()
+             .setMetricRegistry(metricRegistry)
+             .setLimitCheckBatchWindowMillis(Long.parseLong(options.get("batch-window")))
+             .setMaxConnections(maxConnections)
+             .setMaxConnectionsPerRoute(maxConnections)
+             .setLatencyBudgetMillis(Integer.parseInt(options.get("latency-budget")))
+             .setCircuitBreakerErrorRate(Double.parseDouble(options.get("circuit-breaker-error-rate")))
+             .setLocalLimiterNodeCount(Integer.parseInt(options.get("local-limiter-nodes")))
+             .build()) {
+      // the first flag lookup blocks on a load; get it out of the way
+      apiClient.featureIsOn("feature-0");
+
+      final LoadGenerator.Report report = new LoadGenerator(apiClient, onFailure,
+          Integer.parseInt(options.get("groups")), Double.parseDouble(options.get("return-fraction")))
+          .run(Double.parseDouble(options.get("rate")),
+              Long.parseLong(options.get("warmup")),
+              Long.parseLong(options.get("duration")),
+              Long.parseLong(options.get("report-every")),
+              Integer.parseInt(options.get("workers")),
+              out);
+
+      out.println();
+      report.print(out);
+      out.println();
+      out.println("fallbacks (whole run, including warmup)");
+      for (Map.Entry<String, Meter> fallback : metricRegistry.getMeters((name, metric) -> name.startsWith("it.ratelim.fallback.")).entrySet()) {
+        out.printf("  %-45s %10d  %.3f%% of measured checks%n", fallback.getKey(), fallback.getValue().getCount(),
+            report.getChecks() == 0 ? 0 : 100.0 * fallback.getValue().getCount() / report.getChecks());
+      }
+      out.println("endpoint errors (whole run)");
+      for (Map.Entry<String, Meter> errors : metricRegistry.getMeters((name, metric) -> name.endsWith(".errors")).entrySet()) {
+        out.printf("  %-45s %10d%n", errors.getKey(), errors.getValue().getCount());
+      }
+      out.printf("stub: %d requests, %d injected errors, %d dropped connections%n",
+          server.getRequestCount(), server.getErrorCount(), server.getDropCount());
+    }
+  }
+
+  /**
+   * answers the protobuf endpoints the client uses: limitcheck, limitcheck/batch, limitreturn, limitreturn/batch,
+   * featureflags and limits. Limit checks pass unless the faults deny them
+   */
+  private static StubRateLimitServer serveApi(StubRateLimitServer server, int flagCount) {
+    final RateLimitProtos.FeatureFlags.Builder flags = RateLimitProtos.FeatureFlags.newBuilder();
+    for (int i = 0; i < flagCount; i++) {
+      flags.addFlags(RateLimitProtos.FeatureFlag.newBuilder()
+          .setAccountId(1)
+          .setFeature("feature-" + i)
+          .setPct(0.5));
+    }
+    final byte[] featureFlags = flags.build().toByteArray();
+    final byte[] limitDefinitions = RateLimitProtos.LimitDefinitions.newBuilder()
+        .addDefinitions(RateLimitProtos.LimitDefinition.newBuilder()
+            .setGroup("loadtest")
+            .setLimit(1000000)
+            .setPolicyName(RateLimitProtos.LimitResponse.LimitPolicyNames.SECONDLY_ROLLING))
+        .build().toByteArray();
+    final Faults faults = server.getFaults();
+    return server
+        .handle("limitcheck", body -> limitResponse(faults, parseBody(body, RateLimitProtos.LimitRequest::parseFrom)).toByteArray())
+        .handle("limitcheck/batch", body -> {
+          final RateLimitProtos.LimitResponses.Builder responses = RateLimitProtos.LimitResponses.newBuilder();
+          for (RateLimitProtos.LimitRequest limitRequest : parseBody(body, RateLimitProtos.LimitRequests::parseFrom).getRequestsList()) {
+            responses.addResponses(limitResponse(faults, limitRequest));
+          }
+          return responses.build().toByteArray();
+        })
+        .handle("limitreturn", body -> OK)
+        .handle("limitreturn/batch", body -> OK)
+        .handle("featureflags", body -> featureFlags)
+        .handle("limits", body -> limitDefinitions);
+  }
+
+  private static RateLimitProtos.LimitResponse limitResponse(Faults faults, RateLimitProtos.LimitRequest limitRequest) {
+    final RateLimitProtos.LimitResponse.Builder limitResponse = RateLimitProtos.LimitResponse.newBuilder()
+        .setAmount(limitRequest.getAcquireAmount());
+    if (faults.deny()) {
+      limitResponse
+          .setPassed(false)
+          .setEnforcedGroup(limitRequest.getGroupsCount() > 0 ? limitRequest.getGroups(0) : "")
+          .setLimitResetAt(System.currentTimeMillis() + DENIAL_RESET_MILLIS);
+    } else {
+      limitResponse.setPassed(true);
+    }
+    return limitResponse.build();
+  }
+
+  /**
+   * the stub answers 500 to a handler's RuntimeException
+   */
+  private static <T> T parseBody(byte[] body, Parser<T> parser) {
+    try {
+      return parser.parseFrom(body);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private interface Parser<T> {
+    T parseFrom(byte[] body) throws InvalidProtocolBufferException;
+  }
+
+  /**
+   * @return null if the arguments can't be used
+   */
+  private static Map<String, String> parse(String[] args) {
+    final Map<String, String> options = new HashMap<>();
+    for (String[] option : OPTIONS) {
+      options.put(option[0], option[1]);
+    }
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2)) || i + 1 == args.length) {
+        return null;
+      }
+      options.put(args[i].substring(2), args[++i]);
+    }
+    return options;
+  }
+
+  private static void usage(PrintStream out) {
+    out.println("java -jar loadtest.jar [--option value]...");
+    for (String[] option : OPTIONS) {
+      out.printf("  --%-28s %s (default %s)%n", option[0], option[2], option[1]);
+    }
+  }
+}
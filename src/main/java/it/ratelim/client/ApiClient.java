@@ -2,75 +2,168 @@ package it.ratelim.client;
 
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.annotation.Timed;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import it.ratelim.client.util.Cache;
 import it.ratelim.client.util.MemcachedWrapper;
+import it.ratelim.client.util.Timeouts;
 import it.ratelim.data.RateLimitProtos;
 import net.spy.memcached.MemcachedClientIF;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicHeader;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-
-import static com.google.common.cache.CacheBuilder.newBuilder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
 public class ApiClient implements Closeable {
   private static final Logger LOGGER = LoggerFactory.getLogger(ApiClient.class);
+  private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+  private static final int CIRCUIT_BREAKER_WINDOW = 100;
+  private static final int CIRCUIT_BREAKER_MINIMUM_CALLS = 20;
+  private static final int FLAG_REFRESH_LOCK_SECS = 10;
+  private static final long LIMIT_RETURN_RETRY_BASE_MILLIS = 100;
+  private static final int FLAG_MISS_RETRIES = 5;
+  private static final long FLAG_MISS_RETRY_MILLIS = 100;
+  private static final String URL_BASE = "/api/v1/";
+  private static final long HEAVY_HITTER_DECAY_MINUTES = 5;
+  private static final ShortCircuitException CIRCUIT_OPEN = new ShortCircuitException("Circuit breaker open, skipping the call");
+  private static final UncheckedIOException FLAGS_NOT_LOADED =
+      new UncheckedIOException(new ShortCircuitException("Feature flags not loaded yet, using defaults"));
+  private static final long FLAG_LOAD_RETRY_SECS = 5;
 
   private final CloseableHttpClient httpClient;
-  private final String urlBase;
+  private final Supplier<CloseableHttpAsyncClient> newAsyncHttpClient;
+  private final Object asyncHttpClientLock = new Object();
+  private volatile CloseableHttpAsyncClient asyncHttpClient;
+  // guarded by asyncHttpClientLock
+  private boolean asyncHttpClientClosed;
+  private final HostBalancer hostBalancer;
+  private final URI limitCheckUri;
   private final String accountId;
   private final ApiClientMetrics apiClientMetrics;
   private Optional<Cache> distributedCache = Optional.empty();
-  private Optional<String> featureFlagCacheKey = Optional.empty();
-
-  private LoadingCache<String, Optional<RateLimitProtos.FeatureFlag>> inProcessFlagCache;
+  private final String featureFlagCacheKey;
+  private final String featureFlagLockKey;
+  private final AtomicReference<CompletableFuture<RateLimitProtos.FeatureFlags>> featureFlagsInFlight = new AtomicReference<>();
+  private final AtomicBoolean featureFlagsRevalidating = new AtomicBoolean();
+  private final long distributedCacheTimeoutMillis;
+
+  private volatile FeatureFlagSnapshot flagSnapshot;
+  private final Object flagSnapshotLock = new Object();
+  private volatile boolean flagRefreshScheduled;
+  private final AtomicLong flagLoadsStarted = new AtomicLong();
+  // guarded by flagSnapshotLock
+  private long flagSnapshotLoad;
   private final int featureFlagDistributedCacheExpirySecs;
+  private final boolean compactCacheEncoding;
   private final long featureFlagRefetchBuffer;
   private final int featureFlagInProcessCacheExpirySecs;
 
-  private Executor background = Executors.newSingleThreadExecutor();
+  private final ExecutorService background = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("ratelimit-background-%d").setDaemon(true).build());
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("ratelimit-scheduler-%d").setDaemon(true).build());
+  private Optional<LimitCheckBatcher> limitCheckBatcher = Optional.empty();
+  private Optional<TokenLeases> tokenLeases = Optional.empty();
+  private Optional<LocalLimiter> localLimiter = Optional.empty();
+  private final Optional<LimitEngine> limitEngine;
+  private Optional<CircuitBreaker> circuitBreaker = Optional.empty();
+  private Optional<DenialCache> denialCache = Optional.empty();
+  private Optional<HeavyHitterTracker> heavyHitters = Optional.empty();
+  private final double hedgePercentile;
+  private final LimitReturnQueue limitReturnQueue;
+  private Optional<SnapshotFile> snapshotFile = Optional.empty();
+  private volatile RateLimitProtos.LimitDefinitions limitDefinitions = RateLimitProtos.LimitDefinitions.getDefaultInstance();
 
   @Inject
   public ApiClient(Builder builder) {
 
     this.distributedCache = builder.getDistributedCache();
     this.featureFlagDistributedCacheExpirySecs = builder.getFeatureFlagDistributedCacheExpirySecs();
+    this.compactCacheEncoding = builder.isCompactCacheEncoding();
     this.featureFlagRefetchBuffer = builder.getFeatureFlagRefetchBuffer();
     this.featureFlagInProcessCacheExpirySecs = builder.getFeatureFlagInProcessCacheExpirySecs();
+    this.distributedCacheTimeoutMillis = builder.getDistributedCacheTimeoutMillis();
 
     this.apiClientMetrics = new ApiClientMetrics(builder.getMetricRegistry());
+    this.hedgePercentile = builder.getHedgePercentile();
+    if (builder.getHeavyHitterCount() > 0) {
+      heavyHitters = Optional.of(new HeavyHitterTracker(builder.getHeavyHitterCount()));
+      apiClientMetrics.registerHeavyHitters(heavyHitters.get());
+    }
+    if (builder.getDenialCacheMaxSize() > 0) {
+      denialCache = Optional.of(new DenialCache(builder.getDenialCacheMaxSize()));
+    }
+    if (builder.getCircuitBreakerErrorRate() > 0 || hedgePercentile > 0) {
+      // calls to the service are broken per host (see HostBalancer), this one only opens for a LimitEngine
+      circuitBreaker = Optional.of(new CircuitBreaker(
+          builder.getLimitEngine().isPresent() ? builder.getCircuitBreakerErrorRate() : 0,
+          CIRCUIT_BREAKER_WINDOW,
+          CIRCUIT_BREAKER_MINIMUM_CALLS,
+          builder.getCircuitBreakerOpenMillis(),
+          builder.getCircuitBreakerSlowCallMillis()));
+    }
 
     String password;
     if (builder.getApikey() == null) {
@@ -82,123 +175,915 @@ public class ApiClient implements Closeable {
       this.accountId = apikeyparts[0];
       password = apikeyparts[1];
     }
-    this.urlBase = String.format("%s://%s:%d/api/v1/",
-        builder.getPort() == 443 ? "https" : "http",
-        builder.getHost(),
-        builder.getPort());
+    this.featureFlagCacheKey = String.format("it.ratelim.java.%s.featureflags", accountId);
+    this.featureFlagLockKey = featureFlagCacheKey + ".lock";
+    final List<HttpHost> hosts = new ArrayList<>();
+    for (HostAndPort endpoint : builder.getEndpoints()) {
+      hosts.add(new HttpHost(endpoint.getHostText(), endpoint.getPort(), endpoint.getPort() == 443 ? "https" : "http"));
+    }
+    // probing idle hosts at half the keep alive keeps a pooled connection to each of them open
+    this.hostBalancer = new HostBalancer(hosts, builder.getKeepAliveMillis() / 2, () -> builder.getCircuitBreakerErrorRate() > 0
+        ? new CircuitBreaker(
+            builder.getCircuitBreakerErrorRate(),
+            CIRCUIT_BREAKER_WINDOW,
+            CIRCUIT_BREAKER_MINIMUM_CALLS,
+            builder.getCircuitBreakerOpenMillis(),
+            builder.getCircuitBreakerSlowCallMillis())
+        : null);
+    for (HostBalancer.Host host : hostBalancer.getHosts()) {
+      apiClientMetrics.registerHost(host);
+    }
+    this.limitCheckUri = URI.create(getUrl("limitcheck"));
 
     httpClient = setupHttpClient(builder, password);
+    newAsyncHttpClient = () -> setupAsyncHttpClient(builder, password);
+
+    if (builder.getLimitCheckBatchWindowMillis() > 0) {
+      limitCheckBatcher = Optional.of(new LimitCheckBatcher(
+          builder.getLimitCheckBatchWindowMillis(),
+          builder.getLimitCheckMaxBatchSize(),
+          this::limitCheckBatchRequest,
+          scheduler));
+    }
+    if (!builder.getLeasedGroups().isEmpty()) {
+      tokenLeases = Optional.of(new TokenLeases(
+          ImmutableSet.copyOf(builder.getLeasedGroups()),
+          builder.getLeaseTargetMillis(),
+          builder.getMaxLeaseSize(),
+          // leased checks are counted as heavy hitters by recordLeasedCheck, once each, not by the lease calls
+          limitRequest -> sendLimitCheck(limitRequest, null).thenApply(limitResponse -> {
+            cacheDenial(limitRequest, limitResponse);
+            return limitResponse;
+          }),
+          (e, limitRequest) -> fallBack(e, Optional.of(limitRequest), RateLimitProtos.OnFailure.LOG_AND_PASS)));
+    }
+    limitReturnQueue = new LimitReturnQueue(
+        builder.getLimitReturnBatchWindowMillis(),
+        builder.getLimitReturnMaxBatchSize(),
+        builder.getLimitReturnMaxAttempts(),
+        LIMIT_RETURN_RETRY_BASE_MILLIS,
+        this::limitReturnBatchRequest,
+        scheduler);
+    limitEngine = builder.getLimitEngine();
+    if (builder.getLocalLimiterNodeCount() > 0) {
+      localLimiter = Optional.of(new LocalLimiter(builder.getLocalLimiterNodeCount()));
+    }
+    if (builder.getSnapshotFile().isPresent()) {
+      snapshotFile = Optional.of(new SnapshotFile(builder.getSnapshotFile().get()));
+      loadSnapshotFile();
+    }
+    if (localLimiter.isPresent() || limitEngine.isPresent()) {
+      scheduler.scheduleWithFixedDelay(() -> background.execute(this::refreshLimitDefinitions),
+          0, builder.getLimitDefinitionRefreshSecs(), TimeUnit.SECONDS);
+    }
+    if (heavyHitters.isPresent()) {
+      final HeavyHitterTracker tracker = heavyHitters.get();
+      scheduler.scheduleWithFixedDelay(() -> background.execute(tracker::decay),
+          HEAVY_HITTER_DECAY_MINUTES, HEAVY_HITTER_DECAY_MINUTES, TimeUnit.MINUTES);
+    }
+    if (distributedCache.isPresent()) {
+      distributedCache.get().subscribe(featureFlagCacheKey, this::onFeatureFlagsChanged);
+    }
+  }
 
-    inProcessFlagCache = newBuilder()
-        .maximumSize(1000)
-        .expireAfterWrite(featureFlagInProcessCacheExpirySecs, TimeUnit.SECONDS)
-        .build(
-            new CacheLoader<String, Optional<RateLimitProtos.FeatureFlag>>() {
-              public Optional<RateLimitProtos.FeatureFlag> load(String feature) throws IOException {
-                return findFlag(feature);
-              }
-            });
+  /**
+   * serve whatever was persisted last time straight away; the first scheduled refresh runs immediately to reconcile
+   */
+  private void loadSnapshotFile() {
+    try {
+      final Optional<RateLimitProtos.ClientSnapshot> clientSnapshot = snapshotFile.get().read();
+      if (!clientSnapshot.isPresent()) {
+        return;
+      }
+      if (clientSnapshot.get().hasFeatureFlags()) {
+        synchronized (flagSnapshotLock) {
+          startFlagSnapshot(clientSnapshot.get().getFeatureFlags(), 0);
+        }
+      }
+      if (clientSnapshot.get().hasLimitDefinitions()) {
+        limitDefinitions = clientSnapshot.get().getLimitDefinitions();
+        applyLimitDefinitions(limitDefinitions);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Exception reading snapshot file, starting cold", e);
+    }
+  }
+
+  private void writeSnapshotFile() {
+    if (!snapshotFile.isPresent() || background.isShutdown()) {
+      return;
+    }
+    background.execute(() -> {
+      final RateLimitProtos.ClientSnapshot.Builder clientSnapshot = RateLimitProtos.ClientSnapshot.newBuilder()
+          .setLimitDefinitions(limitDefinitions)
+          .setWrittenAt(DateTime.now().getMillis());
+      final FeatureFlagSnapshot flags = flagSnapshot;
+      if (flags != null) {
+        clientSnapshot.setFeatureFlags(flags.getFeatureFlags());
+      }
+      try {
+        snapshotFile.get().write(clientSnapshot.build());
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn("Exception writing snapshot file", e);
+      }
+    });
   }
 
   private CloseableHttpClient setupHttpClient(Builder builder, String pass) {
-    CredentialsProvider credsProvider = new BasicCredentialsProvider();
+    final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(accountId, pass);
 
+    final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(builder.getMaxConnections());
+    connectionManager.setDefaultMaxPerRoute(builder.getMaxConnectionsPerRoute());
+    apiClientMetrics.registerConnectionPool("sync", connectionManager);
+
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(keepAliveStrategy(builder))
+        .evictIdleConnections(builder.getKeepAliveMillis(), TimeUnit.MILLISECONDS)
+        .setDefaultHeaders(defaultHeaders(credentials))
+        .setDefaultCredentialsProvider(credentialsProvider(builder, credentials))
+        .setDefaultRequestConfig(requestConfig(builder))
+        .build();
+  }
+
+  /**
+   * the async client and its I/O reactor threads are only started by the first async call, so clients that only
+   * make blocking calls never have them
+   */
+  private CloseableHttpAsyncClient asyncHttpClient() {
+    CloseableHttpAsyncClient client = asyncHttpClient;
+    if (client != null) {
+      return client;
+    }
+    synchronized (asyncHttpClientLock) {
+      if (asyncHttpClientClosed) {
+        throw new IllegalStateException("ApiClient is closed");
+      }
+      if (asyncHttpClient == null) {
+        client = newAsyncHttpClient.get();
+        client.start();
+        asyncHttpClient = client;
+      }
+      return asyncHttpClient;
+    }
+  }
+
+  /**
+   * non-blocking twin of the sync client, used by the *Async methods. Responses are handled on its I/O dispatcher threads.
+   */
+  private CloseableHttpAsyncClient setupAsyncHttpClient(Builder builder, String pass) {
     final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(accountId, pass);
-    credsProvider.setCredentials(
-        new AuthScope(builder.getHost(), builder.getPort()),
-        credentials);
 
+    final PoolingNHttpClientConnectionManager connectionManager;
+    try {
+      connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT));
+    } catch (IOReactorException e) {
+      throw new IllegalStateException(e);
+    }
+    connectionManager.setMaxTotal(builder.getMaxConnections());
+    connectionManager.setDefaultMaxPerRoute(builder.getMaxConnectionsPerRoute());
+    apiClientMetrics.registerConnectionPool("async", connectionManager);
+
+    return HttpAsyncClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(keepAliveStrategy(builder))
+        .setDefaultHeaders(defaultHeaders(credentials))
+        .setDefaultCredentialsProvider(credentialsProvider(builder, credentials))
+        .setDefaultRequestConfig(requestConfig(builder))
+        .build();
+  }
+
+  /**
+   * honor a shorter Keep-Alive timeout from the server, otherwise reuse idle connections for keepAliveMillis
+   */
+  private ConnectionKeepAliveStrategy keepAliveStrategy(Builder builder) {
+    return (response, context) -> {
+      final long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return serverKeepAlive > 0 ? Math.min(serverKeepAlive, builder.getKeepAliveMillis()) : builder.getKeepAliveMillis();
+    };
+  }
+
+  private RequestConfig requestConfig(Builder builder) {
+    final RequestConfig.Builder requestConfig = RequestConfig.custom();
+    if (builder.getLatencyBudgetMillis() > 0) {
+      requestConfig
+          .setConnectionRequestTimeout(builder.getLatencyBudgetMillis())
+          .setConnectTimeout(builder.getLatencyBudgetMillis())
+          .setSocketTimeout(builder.getLatencyBudgetMillis());
+    }
+    return requestConfig.build();
+  }
+
+  private CredentialsProvider credentialsProvider(Builder builder, UsernamePasswordCredentials credentials) {
+    CredentialsProvider credsProvider = new BasicCredentialsProvider();
+    for (HostAndPort endpoint : builder.getEndpoints()) {
+      credsProvider.setCredentials(
+          new AuthScope(endpoint.getHostText(), endpoint.getPort()),
+          credentials);
+    }
+    return credsProvider;
+  }
+
+  private List<Header> defaultHeaders(UsernamePasswordCredentials credentials) {
     Header header = new BasicHeader(HttpHeaders.CONTENT_TYPE, Consts.PROTO_BUF_CONTENT_TYPE);
     List<Header> headers = new ArrayList<>();
     headers.add(header);
     headers.add(BasicScheme.authenticate(credentials, "UTF8", false));//pre-emptive auth
-
-    return HttpClients.custom()
-        .setDefaultHeaders(headers)
-        .setDefaultCredentialsProvider(credsProvider)
-        .build();
+    return headers;
   }
 
 
   public boolean isPass(String key) {
+    if (tokenLeases.isPresent() && tokenLeases.get().isLeased(key)) {
+      return recordLeasedCheck(key, tokenLeases.get().isPass(key));
+    }
     final RateLimitProtos.LimitResponse limitResponse = limitCheck(RateLimitProtos.LimitRequest.newBuilder().addGroups(key).build());
     return limitResponse.getPassed();
   }
 
+  /**
+   * a reusable check of group, encoded once up front. Cheaper than isPass(group) when the same group is checked
+   * over and over, and safe to share between threads
+   *
+   * @param group
+   */
+  public PreparedLimitCheck prepare(String group) {
+    return new PreparedLimitCheck(this, group);
+  }
+
+  boolean isPass(RateLimitProtos.LimitRequest limitRequest, HttpEntity body) {
+    final String group = limitRequest.getGroups(0);
+    if (limitRequest.getAcquireAmount() == 1 && tokenLeases.isPresent() && tokenLeases.get().isLeased(group)) {
+      return recordLeasedCheck(group, tokenLeases.get().isPass(group));
+    }
+    return limitCheck(limitRequest, body, RateLimitProtos.OnFailure.LOG_AND_PASS).getPassed();
+  }
+
   public RateLimitProtos.LimitResponse limitCheck(RateLimitProtos.LimitRequest limitRequest) {
     return limitCheck(limitRequest, RateLimitProtos.OnFailure.LOG_AND_PASS);
   }
 
   @Timed
   public RateLimitProtos.LimitResponse limitCheck(RateLimitProtos.LimitRequest limitRequest, RateLimitProtos.OnFailure onFailure) {
+    return limitCheck(limitRequest, null, onFailure);
+  }
 
-    HttpPost httppost = new HttpPost(getUrl("limitcheck"));
-    ByteArrayEntity entity = new ByteArrayEntity(limitRequest.toByteArray());
-    httppost.setEntity(entity);
+  /**
+   * @param body limitRequest already encoded, or null to encode it here
+   */
+  RateLimitProtos.LimitResponse limitCheck(RateLimitProtos.LimitRequest limitRequest, HttpEntity body, RateLimitProtos.OnFailure onFailure) {
+    final RateLimitProtos.LimitResponse cachedDenial = getCachedDenial(limitRequest);
+    if (cachedDenial != null) {
+      return cachedDenial;
+    }
+    if (limitEngine.isPresent() || limitCheckBatcher.isPresent() || hedgePercentile > 0) {
+      return join(limitCheckAsync(limitRequest, body, onFailure));
+    }
+    if (!allowRequest()) {
+      return handleError(CIRCUIT_OPEN, Optional.of(limitRequest), onFailure);
+    }
+
+    HttpPost httppost = new HttpPost(limitCheckUri);
+    httppost.setEntity(body != null ? body : new ByteArrayEntity(limitRequest.toByteArray()));
+
+    final long start = System.nanoTime();
+    try {
+      final RateLimitProtos.LimitResponse limitResponse = execute(httppost, this::handleLimitResponse);
+      recordSuccess(start);
+      recordResponse(limitRequest, limitResponse);
+      return limitResponse;
+    } catch (IOException e) {
+      recordFailure(start);
+      return handleError(e, Optional.of(limitRequest), onFailure);
+    }
+  }
+
+  public CompletableFuture<Boolean> isPassAsync(String key) {
+    return limitCheckAsync(RateLimitProtos.LimitRequest.newBuilder().addGroups(key).build())
+        .thenApply(RateLimitProtos.LimitResponse::getPassed);
+  }
+
+  public CompletableFuture<RateLimitProtos.LimitResponse> limitCheckAsync(RateLimitProtos.LimitRequest limitRequest) {
+    return limitCheckAsync(limitRequest, RateLimitProtos.OnFailure.LOG_AND_PASS);
+  }
+
+  /**
+   * non-blocking limitCheck. The future completes on an I/O thread, so don't block in dependent stages.
+   * Failures follow the same onFailure handling as limitCheck; THROW completes the future exceptionally with a RateLimitException
+   *
+   * @param limitRequest
+   * @param onFailure
+   */
+  @Timed
+  public CompletableFuture<RateLimitProtos.LimitResponse> limitCheckAsync(RateLimitProtos.LimitRequest limitRequest, RateLimitProtos.OnFailure onFailure) {
+    return limitCheckAsync(limitRequest, null, onFailure);
+  }
+
+  /**
+   * @param body limitRequest already encoded, or null to encode it if it goes out on its own
+   */
+  CompletableFuture<RateLimitProtos.LimitResponse> limitCheckAsync(RateLimitProtos.LimitRequest limitRequest, HttpEntity body, RateLimitProtos.OnFailure onFailure) {
+    final RateLimitProtos.LimitResponse cachedDenial = getCachedDenial(limitRequest);
+    if (cachedDenial != null) {
+      return CompletableFuture.completedFuture(cachedDenial);
+    }
+    return sendLimitCheck(limitRequest, body)
+        .handle((limitResponse, e) -> {
+          if (e != null) {
+            return handleError(asException(e), Optional.of(limitRequest), onFailure);
+          }
+          recordResponse(limitRequest, limitResponse);
+          return limitResponse;
+        });
+  }
+
+  /**
+   * the engine, batcher or http call behind limitCheckAsync, without the denial cache or OnFailure handling:
+   * failures complete the future exceptionally
+   */
+  private CompletableFuture<RateLimitProtos.LimitResponse> sendLimitCheck(RateLimitProtos.LimitRequest limitRequest, HttpEntity body) {
+    final CompletableFuture<RateLimitProtos.LimitResponse> pending;
+    if (!allowRequest()) {
+      pending = new CompletableFuture<>();
+      pending.completeExceptionally(CIRCUIT_OPEN);
+    } else if (limitEngine.isPresent()) {
+      pending = recordOutcome(limitEngine.get().check(limitRequest));
+    } else if (limitCheckBatcher.isPresent()) {
+      pending = limitCheckBatcher.get().submit(limitRequest);
+    } else if (hedgePercentile > 0) {
+      pending = hedgedLimitCheckRequest(limitRequest, body);
+    } else {
+      pending = limitCheckRequest(limitRequest, body);
+    }
+    return pending;
+  }
+
+  /**
+   * true only if every group passes. Stops without a round trip if any group is a cached denial
+   *
+   * @param groups
+   */
+  public boolean isPassAll(String... groups) {
+    return join(limitCheckEachAsync(Arrays.asList(groups), true, RateLimitProtos.OnFailure.LOG_AND_PASS)).allPassed();
+  }
+
+  public LimitCheckResults limitCheckEach(List<String> groups) {
+    return join(limitCheckEachAsync(groups, false, RateLimitProtos.OnFailure.LOG_AND_PASS));
+  }
+
+  /**
+   * Check several independent groups (per user, per ip, per tenant...) in one round trip, each on its own
+   * LimitRequest in a batch so every group gets its own answer. Unlike one LimitRequest with several groups,
+   * which answers once for all of them.
+   *
+   * @param groups
+   * @param requireAll if any group is a cached denial, return straight away without checking the others
+   * @param onFailure  applied to each group when the batch fails
+   */
+  public CompletableFuture<LimitCheckResults> limitCheckEachAsync(List<String> groups, boolean requireAll, RateLimitProtos.OnFailure onFailure) {
+    final RateLimitProtos.LimitResponse[] limitResponses = new RateLimitProtos.LimitResponse[groups.size()];
+    final int[] remoteIndexes = new int[groups.size()];
+    final RateLimitProtos.LimitRequests.Builder remote = RateLimitProtos.LimitRequests.newBuilder();
+    for (int i = 0; i < groups.size(); i++) {
+      final RateLimitProtos.LimitRequest limitRequest = RateLimitProtos.LimitRequest.newBuilder().addGroups(groups.get(i)).build();
+      final RateLimitProtos.LimitResponse cachedDenial = getCachedDenial(limitRequest);
+      if (cachedDenial != null) {
+        limitResponses[i] = cachedDenial;
+        if (requireAll) {
+          return CompletableFuture.completedFuture(new LimitCheckResults(groups, limitResponses));
+        }
+      } else {
+        remoteIndexes[remote.getRequestsCount()] = i;
+        remote.addRequests(limitRequest);
+      }
+    }
+    if (remote.getRequestsCount() == 0) {
+      return CompletableFuture.completedFuture(new LimitCheckResults(groups, limitResponses));
+    }
+    if (remote.getRequestsCount() == 1) {
+      return limitCheckAsync(remote.getRequests(0), onFailure).thenApply(limitResponse -> {
+        limitResponses[remoteIndexes[0]] = limitResponse;
+        return new LimitCheckResults(groups, limitResponses);
+      });
+    }
+
+    final RateLimitProtos.LimitRequests limitRequests = remote.build();
+    CompletableFuture<RateLimitProtos.LimitResponses> pending;
+    if (!allowRequest()) {
+      pending = new CompletableFuture<>();
+      pending.completeExceptionally(CIRCUIT_OPEN);
+    } else if (limitEngine.isPresent()) {
+      pending = engineCheckEach(limitRequests);
+    } else {
+      pending = limitCheckBatchRequest(limitRequests);
+    }
+    return pending.handle((batch, e) -> {
+      if (e == null && batch.getResponsesCount() != limitRequests.getRequestsCount()) {
+        e = new IOException("Expected " + limitRequests.getRequestsCount() + " responses but got " + batch.getResponsesCount());
+      }
+      for (int j = 0; j < limitRequests.getRequestsCount(); j++) {
+        final RateLimitProtos.LimitRequest limitRequest = limitRequests.getRequests(j);
+        if (e != null) {
+          limitResponses[remoteIndexes[j]] = handleError(asException(e), Optional.of(limitRequest), onFailure);
+        } else {
+          recordResponse(limitRequest, batch.getResponses(j));
+          limitResponses[remoteIndexes[j]] = batch.getResponses(j);
+        }
+      }
+      return new LimitCheckResults(groups, limitResponses);
+    });
+  }
+
+  /**
+   * the engine has no batch call, so check each request on it and gather the responses in order
+   */
+  private CompletableFuture<RateLimitProtos.LimitResponses> engineCheckEach(RateLimitProtos.LimitRequests limitRequests) {
+    final List<CompletableFuture<RateLimitProtos.LimitResponse>> checks = new ArrayList<>();
+    for (RateLimitProtos.LimitRequest limitRequest : limitRequests.getRequestsList()) {
+      checks.add(limitEngine.get().check(limitRequest));
+    }
+    return recordOutcome(CompletableFuture.allOf(checks.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+      final RateLimitProtos.LimitResponses.Builder limitResponses = RateLimitProtos.LimitResponses.newBuilder();
+      for (CompletableFuture<RateLimitProtos.LimitResponse> check : checks) {
+        limitResponses.addResponses(check.join());
+      }
+      return limitResponses.build();
+    }));
+  }
+
+  private CompletableFuture<RateLimitProtos.LimitResponse> limitCheckRequest(RateLimitProtos.LimitRequest limitRequest, HttpEntity body) {
+    HttpPost httppost = new HttpPost(limitCheckUri);
+    httppost.setEntity(body != null ? body : new ByteArrayEntity(limitRequest.toByteArray()));
+    return recordOutcome(executeAsync(httppost, this::handleLimitResponse));
+  }
+
+  /**
+   * send a second copy of the check if the first hasn't answered within hedgePercentile of recent latencies; first success wins
+   */
+  private CompletableFuture<RateLimitProtos.LimitResponse> hedgedLimitCheckRequest(RateLimitProtos.LimitRequest limitRequest, HttpEntity body) {
+    final long hedgeDelayMillis = circuitBreaker.get().percentileMillis(hedgePercentile);
+    if (hedgeDelayMillis <= 0) {
+      return limitCheckRequest(limitRequest, body);
+    }
+    final CompletableFuture<RateLimitProtos.LimitResponse> result = new CompletableFuture<>();
+    final AtomicInteger outstanding = new AtomicInteger(1);
+    final Runnable send = () -> limitCheckRequest(limitRequest, body).whenComplete((limitResponse, e) -> {
+      if (e == null) {
+        result.complete(limitResponse);
+      } else if (outstanding.decrementAndGet() == 0) {
+        result.completeExceptionally(e);
+      }
+    });
+    send.run();
+    final ScheduledFuture<?> hedge = scheduler.schedule(() -> {
+      if (!result.isDone()) {
+        outstanding.incrementAndGet();
+        send.run();
+      }
+    }, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+    result.whenComplete((limitResponse, e) -> hedge.cancel(false));
+    return result;
+  }
+
+  private RateLimitProtos.LimitResponse getCachedDenial(RateLimitProtos.LimitRequest limitRequest) {
+    if (!denialCache.isPresent()) {
+      return null;
+    }
+    final RateLimitProtos.LimitResponse denial = denialCache.get().get(limitRequest);
+    if (denial != null) {
+      apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_LIMIT_CHECK_DENIAL_CACHE_HIT);
+      recordHeavyHitters(limitRequest, denial);
+    }
+    return denial;
+  }
 
-    ResponseHandler<RateLimitProtos.LimitResponse> responseHandler = response -> {
+  /**
+   * every answer from the service or engine comes through here once
+   */
+  private void recordResponse(RateLimitProtos.LimitRequest limitRequest, RateLimitProtos.LimitResponse limitResponse) {
+    cacheDenial(limitRequest, limitResponse);
+    recordHeavyHitters(limitRequest, limitResponse);
+  }
+
+  private void cacheDenial(RateLimitProtos.LimitRequest limitRequest, RateLimitProtos.LimitResponse limitResponse) {
+    if (denialCache.isPresent() && denialCache.get().record(limitRequest, limitResponse)) {
+      apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_LIMIT_CHECK_DENIAL_CACHE_STORE);
+    }
+  }
+
+  private void recordHeavyHitters(RateLimitProtos.LimitRequest limitRequest, RateLimitProtos.LimitResponse limitResponse) {
+    if (heavyHitters.isPresent()) {
+      heavyHitters.get().recordCheck(limitRequest);
+      if (!limitResponse.getPassed()) {
+        heavyHitters.get().recordDenial(limitRequest);
+      }
+    }
+  }
+
+  private boolean recordLeasedCheck(String group, boolean passed) {
+    if (heavyHitters.isPresent()) {
+      heavyHitters.get().recordCheck(group);
+      if (!passed) {
+        heavyHitters.get().recordDenial(group);
+      }
+    }
+    return passed;
+  }
+
+  /**
+   * the most checked and denied groups and most looked up flags lately, or nothing unless
+   * Builder.setHeavyHitterCount was set
+   */
+  public HeavyHitters getHeavyHitters() {
+    return heavyHitters.isPresent() ? heavyHitters.get().snapshot() : HeavyHitters.NONE;
+  }
+
+  private boolean allowRequest() {
+    return !circuitBreaker.isPresent() || circuitBreaker.get().allowRequest();
+  }
+
+  private void recordSuccess(long startNanos) {
+    if (circuitBreaker.isPresent()) {
+      circuitBreaker.get().recordSuccess(startNanos, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+  }
+
+  private void recordFailure(long startNanos) {
+    if (circuitBreaker.isPresent()) {
+      circuitBreaker.get().recordFailure(startNanos);
+    }
+  }
+
+  private <T> CompletableFuture<T> recordOutcome(CompletableFuture<T> future) {
+    if (circuitBreaker.isPresent()) {
+      final long start = System.nanoTime();
+      future.whenComplete((result, e) -> {
+        if (e == null) {
+          recordSuccess(start);
+        } else {
+          recordFailure(start);
+        }
+      });
+    }
+    return future;
+  }
+
+  private CompletableFuture<RateLimitProtos.LimitResponses> limitCheckBatchRequest(RateLimitProtos.LimitRequests limitRequests) {
+    HttpPost httppost = new HttpPost(getUrl("limitcheck/batch"));
+    httppost.setEntity(new ByteArrayEntity(limitRequests.toByteArray()));
+
+    return recordOutcome(executeAsync(httppost, response -> {
       int status = response.getStatusLine().getStatusCode();
       if (status >= 200 && status < 300) {
-        final RateLimitProtos.LimitResponse limitResponse = RateLimitProtos.LimitResponse.parseFrom(EntityUtils.toByteArray(response.getEntity()));
-        if (limitResponse.getPassed()) {
-          apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_LIMIT_CHECK_PASS);
-        } else {
-          apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_LIMIT_CHECK_HIT);
+        final RateLimitProtos.LimitResponses limitResponses = RateLimitProtos.LimitResponses.parseFrom(content(response));
+        for (RateLimitProtos.LimitResponse limitResponse : limitResponses.getResponsesList()) {
+          markLimitResponse(limitResponse);
         }
-        return limitResponse;
+        return limitResponses;
       } else {
         throw new ClientProtocolException("Unexpected response status: " + status);
       }
-    };
+    }));
+  }
+
+  private RateLimitProtos.LimitResponse handleLimitResponse(HttpResponse response) throws IOException {
+    int status = response.getStatusLine().getStatusCode();
+    if (status >= 200 && status < 300) {
+      final RateLimitProtos.LimitResponse limitResponse = RateLimitProtos.LimitResponse.parseFrom(content(response));
+      markLimitResponse(limitResponse);
+      return limitResponse;
+    } else {
+      throw new ClientProtocolException("Unexpected response status: " + status);
+    }
+  }
+
+  /**
+   * protobuf reads the entity stream directly; execute()/executeAsync() release the response once the handler returns.
+   * The sync client inflates gzipped bodies itself and drops the Content-Encoding header, the async one leaves it to us
+   */
+  private static InputStream content(HttpResponse response) throws IOException {
+    final HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    final Header encoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+    if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue().trim())) {
+      return new GZIPInputStream(entity.getContent());
+    }
+    return entity.getContent();
+  }
+
+  /**
+   * for endpoints with nothing to read back; the body is still drained so the connection goes back to the pool
+   */
+  private static Void ignoreResponse(HttpResponse response) {
+    final int status = response.getStatusLine().getStatusCode();
+    if (status < 200 || status >= 300) {
+      LOGGER.warn("Unexpected response status: {}", status);
+    }
+    return null;
+  }
+
+  private void markLimitResponse(RateLimitProtos.LimitResponse limitResponse) {
+    if (limitResponse.getPassed()) {
+      apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_LIMIT_CHECK_PASS);
+    } else {
+      apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_LIMIT_CHECK_HIT);
+    }
+  }
+
+  /**
+   * sends request to the host the balancer picks, and once more to another host if it couldn't connect
+   */
+  private <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> responseHandler) throws IOException {
+    final HostBalancer.Host host = hostBalancer.choose();
+    if (host == null) {
+      throw CIRCUIT_OPEN;
+    }
     try {
-      return httpClient.execute(httppost, responseHandler);
+      return execute(host, request, responseHandler);
     } catch (IOException e) {
-      return handleError(e, Optional.of(limitRequest), onFailure);
+      final HostBalancer.Host failover = hostBalancer.failoverFrom(host, e);
+      if (failover == null) {
+        throw e;
+      }
+      LOGGER.warn("Couldn't connect to {}, trying {}", host, failover);
+      return execute(failover, request, responseHandler);
+    }
+  }
+
+  private <T> T execute(HostBalancer.Host host, HttpUriRequest request, ResponseHandler<? extends T> responseHandler) throws IOException {
+    final long start = apiClientMetrics.requestStarted();
+    final long hostStart = host.started();
+    boolean failed = true;
+    try {
+      final T result = httpClient.execute(host.getHttpHost(), request, responseHandler);
+      failed = false;
+      return result;
+    } finally {
+      host.finished(hostStart, failed);
+      apiClientMetrics.requestFinished(request.getURI().getPath(), start, failed);
     }
   }
 
+  private <T> CompletableFuture<T> executeAsync(HttpUriRequest request, ResponseHandler<? extends T> responseHandler) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    final HostBalancer.Host host = hostBalancer.choose();
+    if (host == null) {
+      future.completeExceptionally(CIRCUIT_OPEN);
+    } else {
+      executeAsync(host, request, responseHandler, future, true);
+    }
+    return future;
+  }
+
+  private <T> void executeAsync(HostBalancer.Host host, HttpUriRequest request, ResponseHandler<? extends T> responseHandler,
+                                CompletableFuture<T> future, boolean mayFailover) {
+    final long start = apiClientMetrics.requestStarted();
+    final long hostStart = host.started();
+    asyncHttpClient().execute(host.getHttpHost(), request, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        try {
+          final T result = responseHandler.handleResponse(response);
+          finished(false);
+          future.complete(result);
+        } catch (IOException | RuntimeException e) {
+          finished(true);
+          future.completeExceptionally(e);
+        }
+      }
+
+      @Override
+      public void failed(Exception e) {
+        finished(true);
+        final HostBalancer.Host failover = mayFailover ? hostBalancer.failoverFrom(host, e) : null;
+        if (failover == null) {
+          future.completeExceptionally(e);
+        } else {
+          LOGGER.warn("Couldn't connect to {}, trying {}", host, failover);
+          executeAsync(failover, request, responseHandler, future, false);
+        }
+      }
+
+      @Override
+      public void cancelled() {
+        finished(true);
+        future.cancel(false);
+      }
+
+      private void finished(boolean failed) {
+        host.finished(hostStart, failed);
+        apiClientMetrics.requestFinished(request.getURI().getPath(), start, failed);
+      }
+    });
+  }
+
+  private static Exception asException(Throwable t) {
+    return t instanceof Exception ? (Exception) t : new RuntimeException(t);
+  }
+
+  /**
+   * wait for a future built by the *Async methods, rethrowing a RateLimitException from OnFailure.THROW as is
+   */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * fallBack for a failed call, counting a failed limit check as a heavy hitter check
+   */
   private RateLimitProtos.LimitResponse handleError(Exception e, Optional<RateLimitProtos.LimitRequest> limitRequest, RateLimitProtos.OnFailure onFailure) {
+    if (limitRequest.isPresent() && heavyHitters.isPresent()) {
+      heavyHitters.get().recordCheck(limitRequest.get());
+    }
+    return fallBack(e, limitRequest, onFailure);
+  }
+
+  private RateLimitProtos.LimitResponse fallBack(Exception e, Optional<RateLimitProtos.LimitRequest> limitRequest, RateLimitProtos.OnFailure onFailure) {
     String errorMsg = "Problem";
     if (limitRequest.isPresent()) {
       errorMsg = "Problem " + limitRequest.get().getGroupsList();
     }
+    apiClientMetrics.markFallback(onFailure);
+    if (e instanceof ShortCircuitException || e.getCause() instanceof ShortCircuitException) {
+      // expected and possibly at full request rate, the fallback meter counts these
+      LOGGER.debug("{}: {}", errorMsg, e.getMessage());
+    } else {
+      LOGGER.warn(errorMsg, e);
+    }
     switch (onFailure) {
       case LOG_AND_FAIL:
-        LOGGER.warn(errorMsg, e);
         return RateLimitProtos.LimitResponse.newBuilder().setPassed(false).build();
       case LOG_AND_PASS:
-        LOGGER.warn(errorMsg, e);
         return RateLimitProtos.LimitResponse.newBuilder().setPassed(true).build();
       case THROW:
-        LOGGER.warn(errorMsg, e);
         throw new RateLimitException(e);
+      case LOCAL_APPROXIMATE:
+        if (localLimiter.isPresent() && limitRequest.isPresent()) {
+          return localLimiter.get().check(limitRequest.get());
+        }
+        return RateLimitProtos.LimitResponse.newBuilder().setPassed(true).build();
     }
     throw new RuntimeException("Unknown Failure Handing State");
   }
 
+  /**
+   * relative, execute()/executeAsync() pick the host
+   */
   private String getUrl(String endpoint) {
-    return urlBase + endpoint;
+    return URL_BASE + endpoint;
   }
 
   public Collection<RateLimitProtos.LimitDefinition> limitGetAll() throws IOException {
-    HttpGet req = new HttpGet(getUrl("limits"));
+    HttpGet req = conditionalGet("limits", null);
 
     ResponseHandler<RateLimitProtos.LimitDefinitions> responseHandler = response -> {
       int status = response.getStatusLine().getStatusCode();
       if (status >= 200 && status < 300) {
-        return RateLimitProtos.LimitDefinitions.parseFrom(EntityUtils.toByteArray(response.getEntity()));
+        return RateLimitProtos.LimitDefinitions.parseFrom(content(response));
       } else {
         throw new ClientProtocolException("Unexpected response status: " + status);
       }
     };
-    return httpClient.execute(req, responseHandler).getDefinitionsList();
+    return execute(req, responseHandler).getDefinitionsList();
+  }
+
+  /**
+   * @param previous its etag is sent, and returned as is on a 304
+   */
+  private RateLimitProtos.LimitDefinitions limitGetAllIfChanged(RateLimitProtos.LimitDefinitions previous) throws IOException {
+    return execute(conditionalGet("limits", previous.getEtag()), response -> {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == HttpStatus.SC_NOT_MODIFIED) {
+        return previous;
+      } else if (status >= 200 && status < 300) {
+        final RateLimitProtos.LimitDefinitions.Builder limitDefinitions = RateLimitProtos.LimitDefinitions.newBuilder()
+            .mergeFrom(content(response))
+            .clearEtag();
+        final Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etag != null) {
+          limitDefinitions.setEtag(etag.getValue());
+        }
+        return limitDefinitions.build();
+      } else {
+        throw new ClientProtocolException("Unexpected response status: " + status);
+      }
+    });
+  }
+
+  private void refreshLimitDefinitions() {
+    try {
+      final RateLimitProtos.LimitDefinitions latest = limitGetAllIfChanged(limitDefinitions);
+      if (latest != limitDefinitions) {
+        applyLimitDefinitions(latest);
+      }
+      if (!latest.equals(limitDefinitions)) {
+        limitDefinitions = latest;
+        writeSnapshotFile();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Exception refreshing limit definitions", e);
+    }
+  }
+
+  private void applyLimitDefinitions(RateLimitProtos.LimitDefinitions definitions) {
+    if (localLimiter.isPresent()) {
+      localLimiter.get().setDefinitions(definitions.getDefinitionsList());
+    }
+    if (limitEngine.isPresent()) {
+      limitEngine.get().setDefinitions(definitions.getDefinitionsList());
+    }
+  }
+
+  @Timed
+  public void limitReturn(RateLimitProtos.LimitResponse limitResponse) throws IOException {
+    if (limitEngine.isPresent()) {
+      try {
+        limitEngine.get().limitReturn(limitResponse).join();
+      } catch (CompletionException e) {
+        throw new IOException(e.getCause());
+      }
+      return;
+    }
+    HttpPost httppost = new HttpPost(getUrl("limitreturn"));
+    httppost.setEntity(new ByteArrayEntity(limitResponse.toByteArray()));
+    execute(httppost, ApiClient::ignoreResponse);
+  }
+
+  @Timed
+  public CompletableFuture<Void> limitReturnAsync(RateLimitProtos.LimitResponse limitResponse) {
+    if (limitEngine.isPresent()) {
+      return limitEngine.get().limitReturn(limitResponse);
+    }
+    HttpPost httppost = new HttpPost(getUrl("limitreturn"));
+    httppost.setEntity(new ByteArrayEntity(limitResponse.toByteArray()));
+    return executeAsync(httppost, ApiClient::ignoreResponse);
+  }
+
+  /**
+   * queue a return without waiting on the service; returns are batched and retried, and flushed on close
+   *
+   * @param limitResponse
+   */
+  public void limitReturnLater(RateLimitProtos.LimitResponse limitResponse) {
+    limitReturnQueue.add(limitResponse);
+  }
+
+  private CompletableFuture<Void> limitReturnBatchRequest(RateLimitProtos.LimitResponses limitResponses) {
+    if (limitEngine.isPresent()) {
+      final List<CompletableFuture<Void>> returns = new ArrayList<>();
+      for (RateLimitProtos.LimitResponse limitResponse : limitResponses.getResponsesList()) {
+        returns.add(limitEngine.get().limitReturn(limitResponse));
+      }
+      return CompletableFuture.allOf(returns.toArray(new CompletableFuture[0]));
+    }
+    HttpPost httppost = new HttpPost(getUrl("limitreturn/batch"));
+    httppost.setEntity(new ByteArrayEntity(limitResponses.toByteArray()));
+    return executeAsync(httppost, response -> {
+      int status = response.getStatusLine().getStatusCode();
+      if (status >= 200 && status < 300) {
+        return null;
+      } else {
+        throw new ClientProtocolException("Unexpected response status: " + status);
+      }
+    });
+  }
+
+  public <T> RateLimitedProcessor<T> throttle(String group, int maxTokensPerCheck) {
+    return throttle(group, maxTokensPerCheck, RateLimitProtos.OnFailure.LOG_AND_PASS);
+  }
+
+  /**
+   * a Reactive Streams processor that only lets items through as fast as group allows
+   *
+   * @param group
+   * @param maxTokensPerCheck upper bound on acquire_amount
+   * @param onFailure         THROW fails the stream, the others decide whether the tokens were granted
+   */
+  public <T> RateLimitedProcessor<T> throttle(String group, int maxTokensPerCheck, RateLimitProtos.OnFailure onFailure) {
+    return new RateLimitedProcessor<>(group, maxTokensPerCheck, limitRequest -> limitCheckAsync(limitRequest, onFailure), scheduler);
   }
 
-  @Timed
-  public void limitReturn(RateLimitProtos.LimitResponse limitResponse) throws IOException {
-    HttpPost httppost = new HttpPost(getUrl("limitreturn"));
-    httppost.setEntity(new ByteArrayEntity(limitResponse.toByteArray()));
-    httpClient.execute(httppost);
+  public Permit acquire(String group) {
+    return acquire(RateLimitProtos.LimitRequest.newBuilder().addGroups(group).build());
+  }
+
+  /**
+   * limitCheck, wrapped so that closing the result queues the limit return (see limitReturnLater)
+   *
+   * @param limitRequest
+   */
+  public Permit acquire(RateLimitProtos.LimitRequest limitRequest) {
+    return new Permit(limitCheck(limitRequest), this::limitReturnLater);
   }
 
   /**
@@ -212,7 +1097,7 @@ public class ApiClient implements Closeable {
     HttpPost httppost = new HttpPost(getUrl("limits"));
     ByteArrayEntity entity = new ByteArrayEntity(limitDefinition.toByteArray());
     httppost.setEntity(entity);
-    final CloseableHttpResponse execute = httpClient.execute(httppost);
+    execute(httppost, ApiClient::ignoreResponse);
   }
 
   /**
@@ -226,121 +1111,430 @@ public class ApiClient implements Closeable {
     HttpPut httpPut = new HttpPut(getUrl("limits"));
     ByteArrayEntity entity = new ByteArrayEntity(limitDefinition.toByteArray());
     httpPut.setEntity(entity);
-    final CloseableHttpResponse execute = httpClient.execute(httpPut);
+    execute(httpPut, ApiClient::ignoreResponse);
   }
 
 
   public boolean featureIsOn(String feature) {
-    return featureIsOnFor(feature, Optional.empty(), Lists.newArrayList());
+    return isFeatureOnFor(feature, null, Collections.emptyList());
   }
 
   public boolean featureIsOnFor(String feature, String lookupKey) {
-    return featureIsOnFor(feature, Optional.of(lookupKey), Lists.newArrayList());
+    return isFeatureOnFor(feature, lookupKey, Collections.emptyList());
   }
 
+  /**
+   * @param attributes not modified
+   */
   @Timed
   public boolean featureIsOnFor(String feature, Optional<String> lookupKey, List<String> attributes) {
+    return isFeatureOnFor(feature, lookupKey.orElse(null), attributes);
+  }
+
+  public FeatureFlagResults evaluateAll(String lookupKey) {
+    return evaluateAll(lookupKey, Collections.emptyList());
+  }
+
+  /**
+   * every flag of the account for one lookup key, with the same answers as featureIsOnFor on each. Cheaper than
+   * calling that per flag: the whitelists are checked through one index and the key is encoded once
+   *
+   * @param lookupKey  may be null
+   * @param attributes not modified
+   */
+  @Timed
+  public FeatureFlagResults evaluateAll(String lookupKey, List<String> attributes) {
+    try {
+      return getFlagSnapshot().evaluateAll(lookupKey, attributes);
+    } catch (RuntimeException e) {
+      handleError(e, Optional.empty(), RateLimitProtos.OnFailure.LOG_AND_PASS);
+    }
+    return FeatureFlagResults.NONE;
+  }
+
+  private boolean isFeatureOnFor(String feature, String lookupKey, List<String> attributes) {
+    if (heavyHitters.isPresent()) {
+      heavyHitters.get().recordFlagLookup(feature);
+    }
     try {
-      final Optional<RateLimitProtos.FeatureFlag> featureFlag = inProcessFlagCache.get(feature);
+      final CompiledFeatureFlag featureFlag = getFlagSnapshot().get(feature);
 
-      if (!featureFlag.isPresent()) {
+      if (featureFlag == null) {
         return false;
       }
-      return new FeatureFlagWrapper(featureFlag.get()).isOnFor(lookupKey, attributes);
+      return featureFlag.isOnFor(lookupKey, attributes);
 
-    } catch (ExecutionException e) {
+    } catch (RuntimeException e) {
       handleError(e, Optional.empty(), RateLimitProtos.OnFailure.LOG_AND_PASS);
     }
 
     return false;
   }
 
-  private Optional<RateLimitProtos.FeatureFlag> findFlag(String feature) {
-    return getAllFlags().stream()
-        .filter((ff) -> ff.getFeature().equals(feature))
-        .findFirst();
+  /**
+   * only the very first flag lookup waits on a load; after that the snapshot is replaced in the background
+   * every featureFlagInProcessCacheSecs and readers never block. If that first load fails the background refresh
+   * takes over, and lookups get their defaults straight away until it succeeds
+   */
+  private FeatureFlagSnapshot getFlagSnapshot() {
+    FeatureFlagSnapshot snapshot = flagSnapshot;
+    if (snapshot != null) {
+      apiClientMetrics.markFlagSnapshotLookup(true);
+      return snapshot;
+    }
+    apiClientMetrics.markFlagSnapshotLookup(false);
+    if (flagRefreshScheduled) {
+      throw FLAGS_NOT_LOADED;
+    }
+    synchronized (flagSnapshotLock) {
+      if (flagSnapshot == null && !flagRefreshScheduled) {
+        try {
+          startFlagSnapshot(loadFeatureFlags(), featureFlagInProcessCacheExpirySecs);
+        } catch (RuntimeException e) {
+          scheduleFlagRefresh(FLAG_LOAD_RETRY_SECS);
+          throw e;
+        }
+        writeSnapshotFile();
+      }
+      if (flagSnapshot == null) {
+        throw FLAGS_NOT_LOADED;
+      }
+      return flagSnapshot;
+    }
+  }
+
+  /**
+   * caller holds flagSnapshotLock
+   */
+  private void startFlagSnapshot(RateLimitProtos.FeatureFlags featureFlags, long firstRefreshSecs) {
+    flagSnapshot = new FeatureFlagSnapshot(featureFlags);
+    scheduleFlagRefresh(firstRefreshSecs);
+  }
+
+  /**
+   * caller holds flagSnapshotLock
+   */
+  private void scheduleFlagRefresh(long firstRefreshSecs) {
+    flagRefreshScheduled = true;
+    scheduler.scheduleWithFixedDelay(this::refreshFlagSnapshot,
+        firstRefreshSecs, featureFlagInProcessCacheExpirySecs, TimeUnit.SECONDS);
+  }
+
+  private void refreshFlagSnapshot() {
+    final long load = flagLoadsStarted.incrementAndGet();
+    loadFeatureFlagsAsync().whenComplete((featureFlags, e) -> {
+      if (e != null) {
+        LOGGER.warn("Exception refreshing feature flags, keeping the previous ones", e);
+      } else {
+        offerFlagSnapshot(featureFlags, load);
+      }
+    });
+  }
+
+  /**
+   * swap in featureFlags unless a load started after this one's has already been offered. Refreshes and change
+   * notifications finish in any order, so a slow one mustn't undo a newer one. Etags aren't ordered, and cache_expiry
+   * depends on the settings of the node that fetched, so neither tells which flags are newer
+   *
+   * @param load from flagLoadsStarted, taken before loading
+   */
+  private void offerFlagSnapshot(RateLimitProtos.FeatureFlags featureFlags, long load) {
+    synchronized (flagSnapshotLock) {
+      if (load < flagSnapshotLoad) {
+        return;
+      }
+      flagSnapshotLoad = load;
+      if (flagSnapshot != null && flagSnapshot.hasSameFlags(featureFlags)) {
+        return;
+      }
+      flagSnapshot = new FeatureFlagSnapshot(featureFlags);
+    }
+    writeSnapshotFile();
+  }
+
+  /**
+   * some node stored new flags in the distributed cache: reload the in-process snapshot from there now instead of
+   * at its next refresh. Nothing to do until this process has a snapshot
+   */
+  private void onFeatureFlagsChanged() {
+    if (flagSnapshot == null || background.isShutdown()) {
+      return;
+    }
+    apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_FEATURE_FLAG_INVALIDATION);
+    final long load = flagLoadsStarted.incrementAndGet();
+    readCachedFeatureFlags().thenAcceptAsync(featureFlags -> {
+      if (featureFlags != null) {
+        offerFlagSnapshot(featureFlags, load);
+      }
+    }, background);
   }
 
   @Timed
   public Collection<RateLimitProtos.FeatureFlag> getAllFlags() {
-    try {
-      if (distributedCache.isPresent()) {
-        if (!featureFlagCacheKey.isPresent()) {
-          featureFlagCacheKey = Optional.of(String.format("it.ratelim.java.%s.featureflags", accountId));
-        }
+    return loadFeatureFlags().getFlagsList();
+  }
 
-        final byte[] bytes = distributedCache.get().get(featureFlagCacheKey.get());
-        RateLimitProtos.FeatureFlags featureFlags;
-        if (bytes == null) {
+  private RateLimitProtos.FeatureFlags loadFeatureFlags() {
+    return join(loadFeatureFlagsAsync());
+  }
 
-          featureFlags = getAllFlagsApiRequest();
-          distributedCache.get().set(featureFlagCacheKey.get(), featureFlagDistributedCacheExpirySecs, featureFlags.toByteArray());
-          return featureFlags.getFlagsList();
-        } else {
-          featureFlags = RateLimitProtos.FeatureFlags.parseFrom(bytes);
+  /**
+   * concurrent loads in this process share one in-flight future
+   */
+  private CompletableFuture<RateLimitProtos.FeatureFlags> loadFeatureFlagsAsync() {
+    while (true) {
+      final CompletableFuture<RateLimitProtos.FeatureFlags> existing = featureFlagsInFlight.get();
+      if (existing != null) {
+        return existing;
+      }
+      final CompletableFuture<RateLimitProtos.FeatureFlags> mine = new CompletableFuture<>();
+      if (featureFlagsInFlight.compareAndSet(null, mine)) {
+        final long start = System.nanoTime();
+        final CompletableFuture<RateLimitProtos.FeatureFlags> loaded = distributedCache.isPresent()
+            ? loadFeatureFlagsThroughCache()
+            : getAllFlagsApiRequestAsync(knownFeatureFlags());
+        loaded.whenComplete((featureFlags, e) -> {
+          featureFlagsInFlight.compareAndSet(mine, null);
+          apiClientMetrics.updateFlagLoad(start);
+          if (e == null) {
+            mine.complete(featureFlags);
+          } else {
+            mine.completeExceptionally(e);
+          }
+        });
+        return mine;
+      }
+    }
+  }
 
-          fetchAndCacheFlagsAsyncIfNecessary(featureFlags);
+  /**
+   * Stale-while-revalidate: entries live in the distributed cache for twice featureFlagDistributedCacheExpirySecs, so once
+   * cache_expiry passes every node keeps serving the stale copy while the one node holding the refresh lock calls the api.
+   * On a cold miss nodes that lose the lock wait briefly for the winner's write before falling back to the api themselves.
+   */
+  private CompletableFuture<RateLimitProtos.FeatureFlags> loadFeatureFlagsThroughCache() {
+    return readCachedFeatureFlags().thenCompose(featureFlags -> {
+      if (featureFlags != null) {
+        fetchAndCacheFlagsAsyncIfNecessary(featureFlags);
+        return CompletableFuture.completedFuture(featureFlags);
+      }
+      return loadFeatureFlagsOnMiss(0);
+    });
+  }
 
-          return featureFlags.getFlagsList();
-        }
-      } else {
-        return getAllFlagsApiRequest().getFlagsList();
+  private CompletableFuture<RateLimitProtos.FeatureFlags> loadFeatureFlagsOnMiss(int attempt) {
+    return tryFeatureFlagRefreshLock().thenCompose(locked -> {
+      if (locked || attempt >= FLAG_MISS_RETRIES) {
+        return fetchAndCacheFeatureFlags(knownFeatureFlags());
       }
-    } catch (IOException | ExecutionException | InterruptedException e) {
-      throw new RuntimeException(e);
-    }
+      return delay(FLAG_MISS_RETRY_MILLIS)
+          .thenCompose(ignored -> readCachedFeatureFlags())
+          .thenCompose(featureFlags -> featureFlags != null
+              ? CompletableFuture.completedFuture(featureFlags)
+              : loadFeatureFlagsOnMiss(attempt + 1));
+    });
+  }
+
+  /**
+   * @return completes with null on a miss, and also when the cache errors, times out or holds something unreadable
+   */
+  private CompletableFuture<RateLimitProtos.FeatureFlags> readCachedFeatureFlags() {
+    return Timeouts.within(distributedCache.get().getAsync(featureFlagCacheKey).toCompletableFuture(), distributedCacheTimeoutMillis, "feature flag cache get")
+        .handle((bytes, e) -> {
+          if (e != null) {
+            LOGGER.warn("Exception reading feature flags from the distributed cache", e);
+            apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_FEATURE_FLAG_DISTRIBUTED_CACHE_ERROR);
+            return null;
+          }
+          if (bytes == null) {
+            apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_FEATURE_FLAG_DISTRIBUTED_CACHE_MISS);
+            return null;
+          }
+          try {
+            final RateLimitProtos.FeatureFlags featureFlags = RateLimitProtos.FeatureFlags.parseFrom(CacheEncoding.decode(bytes));
+            apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_FEATURE_FLAG_DISTRIBUTED_CACHE_HIT);
+            return featureFlags;
+          } catch (IOException parseException) {
+            LOGGER.warn("Unreadable feature flags in the distributed cache", parseException);
+            apiClientMetrics.mark(ApiClientMetrics.METRICS.IT_RATELIM_FEATURE_FLAG_DISTRIBUTED_CACHE_ERROR);
+            return null;
+          }
+        });
   }
 
   /**
-   * if it's almost time for memcache to expire, reload all flags (add some jitter to help avoid dogpiling)
+   * if it's almost time for memcache to expire, reload all flags (add some jitter to help avoid dogpiling).
+   * At most one revalidation per process, and only the node that takes the refresh lock calls the api
    *
    * @param featureFlags
    */
   private void fetchAndCacheFlagsAsyncIfNecessary(RateLimitProtos.FeatureFlags featureFlags) {
-    if (featureFlags.getCacheExpiry() < DateTime.now().getMillis() + featureFlagRefetchBuffer * Math.random()) {
-      background.execute(() -> {
-        try {
-          final RateLimitProtos.FeatureFlags newFeatureFlags = getAllFlagsApiRequest();
-          distributedCache.get().set(featureFlagCacheKey.get(), featureFlagDistributedCacheExpirySecs, newFeatureFlags.toByteArray());
-        } catch (IOException e) {
-          LOGGER.warn("Exception trying background feature flag sync", e);
-        }
-      });
+    if (featureFlags.getCacheExpiry() < DateTime.now().getMillis() + featureFlagRefetchBuffer * Math.random()
+        && featureFlagsRevalidating.compareAndSet(false, true)) {
+      tryFeatureFlagRefreshLock()
+          .thenCompose(locked -> locked ? fetchAndCacheFeatureFlags(featureFlags) : CompletableFuture.completedFuture(null))
+          .whenComplete((newFeatureFlags, e) -> {
+            featureFlagsRevalidating.set(false);
+            if (e != null) {
+              LOGGER.warn("Exception trying background feature flag sync", e);
+            }
+          });
     }
   }
 
+  /**
+   * a cache that can't answer doesn't hold anyone back: errors count as holding the lock
+   */
+  private CompletableFuture<Boolean> tryFeatureFlagRefreshLock() {
+    return Timeouts.within(distributedCache.get().addAsync(featureFlagLockKey, FLAG_REFRESH_LOCK_SECS, new byte[]{1}).toCompletableFuture(),
+        distributedCacheTimeoutMillis, "feature flag refresh lock")
+        .handle((locked, e) -> e != null || Boolean.TRUE.equals(locked));
+  }
+
+  /**
+   * @param previous may be null; if the api says it's still current it is cached again with a new cache_expiry
+   */
+  private CompletableFuture<RateLimitProtos.FeatureFlags> fetchAndCacheFeatureFlags(RateLimitProtos.FeatureFlags previous) {
+    return getAllFlagsApiRequestAsync(previous).thenApply(featureFlags -> {
+      final byte[] encoded = compactCacheEncoding ? CacheEncoding.encode(featureFlags) : featureFlags.toByteArray();
+      distributedCache.get().setAsync(featureFlagCacheKey, featureFlagDistributedCacheExpirySecs * 2, encoded)
+          .whenComplete((stored, e) -> {
+            if (e != null) {
+              LOGGER.warn("Exception writing feature flags to the distributed cache", e);
+            }
+          });
+      return featureFlags;
+    });
+  }
+
+  private CompletableFuture<Void> delay(long millis) {
+    final CompletableFuture<Void> delayed = new CompletableFuture<>();
+    scheduler.schedule(() -> delayed.complete(null), millis, TimeUnit.MILLISECONDS);
+    return delayed;
+  }
+
   @Timed
   RateLimitProtos.FeatureFlags getAllFlagsApiRequest() throws IOException {
-    HttpGet req = new HttpGet(getUrl("featureflags"));
-    ResponseHandler<RateLimitProtos.FeatureFlags> responseHandler = response -> {
-      int status = response.getStatusLine().getStatusCode();
-      if (status >= 200 && status < 300) {
-        final RateLimitProtos.FeatureFlags featureFlags = RateLimitProtos.FeatureFlags.parseFrom(EntityUtils.toByteArray(response.getEntity()));
-        return featureFlags.toBuilder()
-            .setCacheExpiry(DateTime.now().getMillis() + featureFlagDistributedCacheExpirySecs)
-            .build();
-      } else {
-        throw new ClientProtocolException("Unexpected response status: " + status);
+    final RateLimitProtos.FeatureFlags previous = knownFeatureFlags();
+    return execute(conditionalGet("featureflags", previous == null ? null : previous.getEtag()),
+        response -> handleFeatureFlagsResponse(response, previous));
+  }
+
+  /**
+   * @param previous may be null; otherwise its etag is sent, and a 304 answers with previous and a new cache_expiry
+   */
+  @Timed
+  CompletableFuture<RateLimitProtos.FeatureFlags> getAllFlagsApiRequestAsync(RateLimitProtos.FeatureFlags previous) {
+    return executeAsync(conditionalGet("featureflags", previous == null ? null : previous.getEtag()),
+        response -> handleFeatureFlagsResponse(response, previous));
+  }
+
+  private RateLimitProtos.FeatureFlags handleFeatureFlagsResponse(HttpResponse response, RateLimitProtos.FeatureFlags previous) throws IOException {
+    final long cacheExpiry = DateTime.now().getMillis() + TimeUnit.SECONDS.toMillis(featureFlagDistributedCacheExpirySecs);
+    int status = response.getStatusLine().getStatusCode();
+    if (status == HttpStatus.SC_NOT_MODIFIED && previous != null) {
+      return previous.toBuilder()
+          .setCacheExpiry(cacheExpiry)
+          .build();
+    } else if (status >= 200 && status < 300) {
+      final RateLimitProtos.FeatureFlags.Builder featureFlags = RateLimitProtos.FeatureFlags.newBuilder()
+          .mergeFrom(content(response))
+          .setCacheExpiry(cacheExpiry)
+          .clearEtag();
+      final Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+      if (etag != null) {
+        featureFlags.setEtag(etag.getValue());
       }
-    };
-    return httpClient.execute(req, responseHandler);
+      return featureFlags.build();
+    } else {
+      throw new ClientProtocolException("Unexpected response status: " + status);
+    }
+  }
+
+  /**
+   * the flags this process is serving, for conditional fetches
+   */
+  private RateLimitProtos.FeatureFlags knownFeatureFlags() {
+    final FeatureFlagSnapshot snapshot = flagSnapshot;
+    return snapshot == null ? null : snapshot.getFeatureFlags();
+  }
+
+  /**
+   * a GET that asks for a compressed body, and for none at all when etag still matches
+   *
+   * @param etag may be null or empty
+   */
+  private HttpGet conditionalGet(String endpoint, String etag) {
+    HttpGet req = new HttpGet(getUrl(endpoint));
+    req.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+    if (etag != null && !etag.isEmpty()) {
+      req.addHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    }
+    return req;
   }
 
   @Override
   public void close() throws IOException {
+    if (limitCheckBatcher.isPresent()) {
+      limitCheckBatcher.get().close(CLOSE_TIMEOUT_MILLIS);
+    }
+    limitReturnQueue.close(CLOSE_TIMEOUT_MILLIS);
+    if (limitEngine.isPresent()) {
+      limitEngine.get().close();
+    }
+    scheduler.shutdown();
+    background.shutdown();
+    if (distributedCache.isPresent()) {
+      distributedCache.get().close();
+    }
     httpClient.close();
+    synchronized (asyncHttpClientLock) {
+      asyncHttpClientClosed = true;
+      if (asyncHttpClient != null) {
+        asyncHttpClient.close();
+      }
+    }
   }
 
 
+  public ApiClientMetrics getApiClientMetrics() {
+    return apiClientMetrics;
+  }
+
   public static class Builder {
     private String host = "www.ratelim.it";
     private int port = 443;
+    private List<HostAndPort> endpoints = new ArrayList<>();
     private String apikey;
     private Optional<Cache> distributedCache = Optional.empty();
     private Optional<MetricRegistry> metricRegistry = Optional.empty();
     private int featureFlagDistributedCacheExpirySecs = 180;
     private long featureFlagRefetchBuffer = 100;
-    private int featureFlagInProcessCacheSecs = 50;
+    private int featureFlagInProcessCacheSecs = 50; // how often the in-process flag snapshot is refreshed
+    private long limitCheckBatchWindowMillis = 0;
+    private int limitCheckMaxBatchSize = 100;
+    private Set<String> leasedGroups = new HashSet<>();
+    private long leaseTargetMillis = 1000;
+    private int maxLeaseSize = 100;
+    private int localLimiterNodeCount = 0;
+    private int limitDefinitionRefreshSecs = 60;
+    private int latencyBudgetMillis = 0;
+    private double circuitBreakerErrorRate = 0;
+    private long circuitBreakerOpenMillis = 5000;
+    private long circuitBreakerSlowCallMillis = 0;
+    private double hedgePercentile = 0;
+    private int denialCacheMaxSize = 0;
+    private int heavyHitterCount = 0;
+    private long distributedCacheTimeoutMillis = 500;
+    private boolean compactCacheEncoding = false;
+    private Optional<Path> snapshotFile = Optional.empty();
+    private Optional<LimitEngine> limitEngine = Optional.empty();
+    private int maxConnections = 200;
+    private int maxConnectionsPerRoute = 100;
+    private long keepAliveMillis = 30000;
+    private long limitReturnBatchWindowMillis = 50;
+    private int limitReturnMaxBatchSize = 100;
+    private int limitReturnMaxAttempts = 5;
 
 
     public Builder() {
@@ -379,6 +1573,28 @@ public class ApiClient implements Closeable {
       return this;
     }
 
+    /**
+     * @return the added endpoints, or just host:port if none were added
+     */
+    public List<HostAndPort> getEndpoints() {
+      if (endpoints.isEmpty()) {
+        return Collections.singletonList(HostAndPort.fromParts(host, port));
+      }
+      return endpoints;
+    }
+
+    /**
+     * spread requests over several service endpoints (eg one per region) instead of the single host/port. Each request
+     * goes to the cheaper of two, by recent latency and error rate, and requests that can't connect are resent to another
+     *
+     * @param host
+     * @param port 443 for https
+     */
+    public Builder addEndpoint(String host, int port) {
+      this.endpoints.add(HostAndPort.fromParts(host, port));
+      return this;
+    }
+
     public Builder setApikey(String apikey) {
       this.apikey = apikey;
       return this;
@@ -424,6 +1640,340 @@ public class ApiClient implements Closeable {
       return this;
     }
 
+    public long getLimitCheckBatchWindowMillis() {
+      return limitCheckBatchWindowMillis;
+    }
+
+    /**
+     * opt in to batching: concurrent limit checks are held for up to this long and sent in one request. 0 (default) disables batching
+     *
+     * @param limitCheckBatchWindowMillis
+     */
+    public Builder setLimitCheckBatchWindowMillis(long limitCheckBatchWindowMillis) {
+      this.limitCheckBatchWindowMillis = limitCheckBatchWindowMillis;
+      return this;
+    }
+
+    public int getLimitCheckMaxBatchSize() {
+      return limitCheckMaxBatchSize;
+    }
+
+    /**
+     * send a batch early once this many checks are waiting
+     *
+     * @param limitCheckMaxBatchSize
+     */
+    public Builder setLimitCheckMaxBatchSize(int limitCheckMaxBatchSize) {
+      this.limitCheckMaxBatchSize = limitCheckMaxBatchSize;
+      return this;
+    }
+
+    public Set<String> getLeasedGroups() {
+      return leasedGroups;
+    }
+
+    /**
+     * isPass for this group is served from a locally held block of tokens, refilled in the background
+     *
+     * @param group
+     */
+    public Builder addLeasedGroup(String group) {
+      this.leasedGroups.add(group);
+      return this;
+    }
+
+    public long getLeaseTargetMillis() {
+      return leaseTargetMillis;
+    }
+
+    /**
+     * leases are sized to cover about this much of the observed traffic and expire after it
+     *
+     * @param leaseTargetMillis
+     */
+    public Builder setLeaseTargetMillis(long leaseTargetMillis) {
+      this.leaseTargetMillis = leaseTargetMillis;
+      return this;
+    }
+
+    public int getMaxLeaseSize() {
+      return maxLeaseSize;
+    }
+
+    public Builder setMaxLeaseSize(int maxLeaseSize) {
+      this.maxLeaseSize = maxLeaseSize;
+      return this;
+    }
+
+    public int getLocalLimiterNodeCount() {
+      return localLimiterNodeCount;
+    }
+
+    /**
+     * enables OnFailure.LOCAL_APPROXIMATE: limit definitions are cached and, while the service is unreachable,
+     * enforced in process with each limit divided by this many nodes. 0 (default) disables it
+     *
+     * @param localLimiterNodeCount
+     */
+    public Builder setLocalLimiterNodeCount(int localLimiterNodeCount) {
+      this.localLimiterNodeCount = localLimiterNodeCount;
+      return this;
+    }
+
+    public int getLimitDefinitionRefreshSecs() {
+      return limitDefinitionRefreshSecs;
+    }
+
+    public Builder setLimitDefinitionRefreshSecs(int limitDefinitionRefreshSecs) {
+      this.limitDefinitionRefreshSecs = limitDefinitionRefreshSecs;
+      return this;
+    }
+
+    public int getLatencyBudgetMillis() {
+      return latencyBudgetMillis;
+    }
+
+    /**
+     * connect, pool-wait and socket timeout for every call. 0 (default) waits forever
+     *
+     * @param latencyBudgetMillis
+     */
+    public Builder setLatencyBudgetMillis(int latencyBudgetMillis) {
+      this.latencyBudgetMillis = latencyBudgetMillis;
+      return this;
+    }
+
+    public double getCircuitBreakerErrorRate() {
+      return circuitBreakerErrorRate;
+    }
+
+    /**
+     * once this share (0-1) of recent calls to a service host fail or time out, skip that host for
+     * circuitBreakerOpenMillis; with every host skipped, limit checks go straight to the OnFailure outcome. With a
+     * LimitEngine its checks are tracked the same way. 0 (default) disables the breakers
+     *
+     * @param circuitBreakerErrorRate
+     */
+    public Builder setCircuitBreakerErrorRate(double circuitBreakerErrorRate) {
+      this.circuitBreakerErrorRate = circuitBreakerErrorRate;
+      return this;
+    }
+
+    public long getCircuitBreakerOpenMillis() {
+      return circuitBreakerOpenMillis;
+    }
+
+    public Builder setCircuitBreakerOpenMillis(long circuitBreakerOpenMillis) {
+      this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+      return this;
+    }
+
+    public long getCircuitBreakerSlowCallMillis() {
+      return circuitBreakerSlowCallMillis;
+    }
+
+    /**
+     * calls answered this slowly count as failing towards circuitBreakerErrorRate, so a service that slows
+     * down without timing out still opens the breaker. 0 (default) only counts errors and timeouts
+     *
+     * @param circuitBreakerSlowCallMillis
+     */
+    public Builder setCircuitBreakerSlowCallMillis(long circuitBreakerSlowCallMillis) {
+      this.circuitBreakerSlowCallMillis = circuitBreakerSlowCallMillis;
+      return this;
+    }
+
+    public double getHedgePercentile() {
+      return hedgePercentile;
+    }
+
+    /**
+     * send a second limit check when the first is slower than this percentile (0-1, eg .95) of recent checks.
+     * The slower copy is still counted by the service, so only hedge limits that can absorb the extra token. 0 (default) disables
+     *
+     * @param hedgePercentile
+     */
+    public Builder setHedgePercentile(double hedgePercentile) {
+      this.hedgePercentile = hedgePercentile;
+      return this;
+    }
+
+    public int getDenialCacheMaxSize() {
+      return denialCacheMaxSize;
+    }
+
+    /**
+     * remember up to this many denied groups until their limit_reset_at and deny repeat checks without calling the service.
+     * 0 (default) disables
+     *
+     * @param denialCacheMaxSize
+     */
+    public Builder setDenialCacheMaxSize(int denialCacheMaxSize) {
+      this.denialCacheMaxSize = denialCacheMaxSize;
+      return this;
+    }
+
+    public int getHeavyHitterCount() {
+      return heavyHitterCount;
+    }
+
+    /**
+     * keep this many of the most checked groups, group and partition key pairs, most denied groups and most looked up
+     * flags, see getHeavyHitters. Counting is a few atomic increments per call in fixed memory (a count-min sketch of
+     * about 64 counters per tracked key, for each of the four). 0 (default) disables
+     *
+     * @param heavyHitterCount
+     */
+    public Builder setHeavyHitterCount(int heavyHitterCount) {
+      this.heavyHitterCount = heavyHitterCount;
+      return this;
+    }
+
+    public long getDistributedCacheTimeoutMillis() {
+      return distributedCacheTimeoutMillis;
+    }
+
+    /**
+     * a distributed cache read slower than this is treated as a miss
+     *
+     * @param distributedCacheTimeoutMillis
+     */
+    public Builder setDistributedCacheTimeoutMillis(long distributedCacheTimeoutMillis) {
+      this.distributedCacheTimeoutMillis = distributedCacheTimeoutMillis;
+      return this;
+    }
+
+    public boolean isCompactCacheEncoding() {
+      return compactCacheEncoding;
+    }
+
+    /**
+     * write flags to the distributed cache with a format header, gzipped when large. Clients without CacheEncoding,
+     * earlier 0.0.5 builds included, can't parse entries written this way, so only turn it on once every node sharing
+     * the cache reads both formats (as this one always does). Off (raw protobuf) by default
+     *
+     * @param compactCacheEncoding
+     */
+    public Builder setCompactCacheEncoding(boolean compactCacheEncoding) {
+      this.compactCacheEncoding = compactCacheEncoding;
+      return this;
+    }
+
+    public Optional<Path> getSnapshotFile() {
+      return snapshotFile;
+    }
+
+    /**
+     * persist the last good flags and limit definitions here and serve them on startup, before any network call
+     *
+     * @param snapshotFile
+     */
+    public Builder setSnapshotFile(Path snapshotFile) {
+      this.snapshotFile = Optional.of(snapshotFile);
+      return this;
+    }
+
+    public Optional<LimitEngine> getLimitEngine() {
+      return limitEngine;
+    }
+
+    /**
+     * evaluate limit checks and returns with this engine (e.g. a RedisLimitEngine) instead of the service.
+     * Limit definitions are still fetched from the service (or read from the snapshot file) and handed to it; until
+     * they arrive RedisLimitEngine fails checks, which then get their OnFailure outcome. close() closes the engine
+     *
+     * @param limitEngine
+     */
+    public Builder setLimitEngine(LimitEngine limitEngine) {
+      this.limitEngine = Optional.of(limitEngine);
+      return this;
+    }
+
+    public int getMaxConnections() {
+      return maxConnections;
+    }
+
+    /**
+     * connection pool size, per http client (sync and async each get a pool)
+     *
+     * @param maxConnections
+     */
+    public Builder setMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+      return maxConnectionsPerRoute;
+    }
+
+    /**
+     * requests go to one host unless endpoints were added, so this is effectively the number of concurrent requests
+     * per client and endpoint
+     *
+     * @param maxConnectionsPerRoute
+     */
+    public Builder setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+      this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+      return this;
+    }
+
+    public long getKeepAliveMillis() {
+      return keepAliveMillis;
+    }
+
+    /**
+     * how long an idle pooled connection is kept for reuse, unless the server asks for less
+     *
+     * @param keepAliveMillis
+     */
+    public Builder setKeepAliveMillis(long keepAliveMillis) {
+      this.keepAliveMillis = keepAliveMillis;
+      return this;
+    }
+
+    public long getLimitReturnBatchWindowMillis() {
+      return limitReturnBatchWindowMillis;
+    }
+
+    /**
+     * how long a queued limit return waits for others to share its request
+     *
+     * @param limitReturnBatchWindowMillis
+     */
+    public Builder setLimitReturnBatchWindowMillis(long limitReturnBatchWindowMillis) {
+      this.limitReturnBatchWindowMillis = limitReturnBatchWindowMillis;
+      return this;
+    }
+
+    public int getLimitReturnMaxBatchSize() {
+      return limitReturnMaxBatchSize;
+    }
+
+    /**
+     * send a batch of returns early once this many are waiting
+     *
+     * @param limitReturnMaxBatchSize
+     */
+    public Builder setLimitReturnMaxBatchSize(int limitReturnMaxBatchSize) {
+      this.limitReturnMaxBatchSize = limitReturnMaxBatchSize;
+      return this;
+    }
+
+    public int getLimitReturnMaxAttempts() {
+      return limitReturnMaxAttempts;
+    }
+
+    /**
+     * a batch of returns that still fails after this many tries is dropped
+     *
+     * @param limitReturnMaxAttempts
+     */
+    public Builder setLimitReturnMaxAttempts(int limitReturnMaxAttempts) {
+      this.limitReturnMaxAttempts = limitReturnMaxAttempts;
+      return this;
+    }
+
     public ApiClient build() {
       return new ApiClient(this);
     }
@@ -1,33 +1,190 @@
 package it.ratelim.client;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import it.ratelim.data.RateLimitProtos;
+import org.apache.http.pool.ConnPoolControl;
 
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Everything here updates without locks (Dropwizard meters and counters are LongAdder backed, and timers use
+ * a LatencyReservoir), so it's always on. Without a MetricRegistry the metrics go to a private registry.
+ */
 public class ApiClientMetrics {
+  private static final String PREFIX = "it.ratelim.";
+  private static final long LATENCY_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
   public enum METRICS {
     IT_RATELIM_LIMIT_CHECK_PASS,
-    IT_RATELIM_LIMIT_CHECK_HIT
+    IT_RATELIM_LIMIT_CHECK_HIT,
+    IT_RATELIM_LIMIT_CHECK_DENIAL_CACHE_HIT,
+    IT_RATELIM_LIMIT_CHECK_DENIAL_CACHE_STORE,
+    IT_RATELIM_FEATURE_FLAG_DISTRIBUTED_CACHE_HIT,
+    IT_RATELIM_FEATURE_FLAG_DISTRIBUTED_CACHE_MISS,
+    IT_RATELIM_FEATURE_FLAG_DISTRIBUTED_CACHE_ERROR,
+    IT_RATELIM_FEATURE_FLAG_INVALIDATION
   }
 
-  private Map<METRICS, Meter> meters = new HashMap<>();
+  private final MetricRegistry metricRegistry;
+  private final Map<METRICS, Meter> meters = new EnumMap<>(METRICS.class);
+  private final Map<RateLimitProtos.OnFailure, Meter> fallbacks = new EnumMap<>(RateLimitProtos.OnFailure.class);
+  private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+  private final Counter inFlight;
+  private final Counter flagSnapshotHits;
+  private final Counter flagSnapshotMisses;
+  private final Timer flagLoads;
 
   public ApiClientMetrics(Optional<MetricRegistry> metricRegistry) {
-    if (metricRegistry.isPresent()) {
-      for (METRICS metric : METRICS.values()) {
-        meters.put(metric, metricRegistry.get().meter(metric.name().toLowerCase().replaceAll("_", ".")));
-      }
+    this.metricRegistry = metricRegistry.orElseGet(MetricRegistry::new);
+    for (METRICS metric : METRICS.values()) {
+      meters.put(metric, this.metricRegistry.meter(metric.name().toLowerCase().replaceAll("_", ".")));
     }
+    for (RateLimitProtos.OnFailure onFailure : RateLimitProtos.OnFailure.values()) {
+      fallbacks.put(onFailure, this.metricRegistry.meter(PREFIX + "fallback." + onFailure.name().toLowerCase()));
+    }
+    inFlight = this.metricRegistry.counter(PREFIX + "requests.inflight");
+    flagSnapshotHits = this.metricRegistry.counter(PREFIX + "feature.flag.snapshot.hit");
+    flagSnapshotMisses = this.metricRegistry.counter(PREFIX + "feature.flag.snapshot.miss");
+    flagLoads = register(PREFIX + "feature.flag.load", latencyTimer());
   }
 
   public void mark(METRICS metric) {
-    final Meter meter = meters.get(metric);
-    if(null != meter){
-      meter.mark();
+    meters.get(metric).mark();
+  }
+
+  /**
+   * an OnFailure policy was applied in place of a service answer
+   *
+   * @param onFailure
+   */
+  public void markFallback(RateLimitProtos.OnFailure onFailure) {
+    fallbacks.get(onFailure).mark();
+  }
+
+  /**
+   * @param hit false if the caller had to wait for the first load
+   */
+  public void markFlagSnapshotLookup(boolean hit) {
+    if (hit) {
+      flagSnapshotHits.inc();
+    } else {
+      flagSnapshotMisses.inc();
+    }
+  }
+
+  public void updateFlagLoad(long startNanos) {
+    flagLoads.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return the start time to hand back to requestFinished
+   */
+  public long requestStarted() {
+    inFlight.inc();
+    return System.nanoTime();
+  }
+
+  /**
+   * @param path       request path, one timer and error meter per distinct path
+   * @param startNanos from requestStarted
+   * @param failed     no usable response: transport error, timeout or unexpected status
+   */
+  public void requestFinished(String path, long startNanos, boolean failed) {
+    inFlight.dec();
+    final Endpoint endpoint = endpoint(path);
+    endpoint.latency.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    if (failed) {
+      endpoint.errors.mark();
+    }
+  }
+
+  /**
+   * leased, available, pending and max connections of an http connection pool
+   *
+   * @param name
+   * @param pool
+   */
+  public void registerConnectionPool(String name, ConnPoolControl<?> pool) {
+    final String prefix = PREFIX + "connections." + name + ".";
+    register(prefix + "leased", (Gauge<Integer>) () -> pool.getTotalStats().getLeased());
+    register(prefix + "available", (Gauge<Integer>) () -> pool.getTotalStats().getAvailable());
+    register(prefix + "pending", (Gauge<Integer>) () -> pool.getTotalStats().getPending());
+    register(prefix + "max", (Gauge<Integer>) () -> pool.getTotalStats().getMax());
+  }
+
+  /**
+   * the numbers a HostBalancer routes by, for one service host
+   *
+   * @param host
+   */
+  void registerHost(HostBalancer.Host host) {
+    final String prefix = PREFIX + "host." + host.getHttpHost().getHostName().replace('.', '_') + "_" + host.getHttpHost().getPort() + ".";
+    register(prefix + "latency.millis", (Gauge<Double>) host::getLatencyMillis);
+    register(prefix + "error.rate", (Gauge<Double>) host::getErrorRate);
+    register(prefix + "inflight", (Gauge<Integer>) host::getInFlight);
+    register(prefix + "circuit.open", (Gauge<Boolean>) host::isOpen);
+  }
+
+  /**
+   * top groups and flags as map gauges, rendered by JSON reporters such as the metrics servlet
+   *
+   * @param heavyHitters each gauge reads only its own sketch
+   */
+  void registerHeavyHitters(HeavyHitterTracker heavyHitters) {
+    final String prefix = PREFIX + "heavy.hitters.";
+    register(prefix + "checks", (Gauge<Map<String, Long>>) heavyHitters::topChecks);
+    register(prefix + "partition.checks", (Gauge<Map<String, Long>>) heavyHitters::topPartitionChecks);
+    register(prefix + "denials", (Gauge<Map<String, Long>>) heavyHitters::topDenials);
+    register(prefix + "flag.lookups", (Gauge<Map<String, Long>>) heavyHitters::topFlagLookups);
+  }
+
+  public MetricRegistry getMetricRegistry() {
+    return metricRegistry;
+  }
+
+  private Endpoint endpoint(String path) {
+    // get first: computeIfAbsent locks the bin even when the key is present
+    final Endpoint endpoint = endpoints.get(path);
+    if (endpoint != null) {
+      return endpoint;
+    }
+    return endpoints.computeIfAbsent(path, Endpoint::new);
+  }
+
+  private static Timer latencyTimer() {
+    return new Timer(new LatencyReservoir(LATENCY_WINDOW_MILLIS));
+  }
+
+  /**
+   * clients sharing a registry share metrics, the first one registered wins
+   */
+  @SuppressWarnings("unchecked")
+  private <T extends Metric> T register(String name, T metric) {
+    try {
+      return metricRegistry.register(name, metric);
+    } catch (IllegalArgumentException alreadyRegistered) {
+      return (T) metricRegistry.getMetrics().get(name);
+    }
+  }
+
+  private class Endpoint {
+    private final Timer latency;
+    private final Meter errors;
+
+    Endpoint(String path) {
+      final String name = PREFIX + "endpoint." + path.replaceFirst("^.*/api/v1/", "").replace('/', '.');
+      this.latency = register(name + ".latency", latencyTimer());
+      this.errors = metricRegistry.meter(name + ".errors");
     }
   }
 }
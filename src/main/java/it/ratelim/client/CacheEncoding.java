@@ -0,0 +1,78 @@
+package it.ratelim.client;
+
+import com.google.protobuf.MessageLite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How messages are stored in the distributed cache with Builder.setCompactCacheEncoding: a 4 byte header
+ * (0xff 'R' 'L' format) and then the protobuf, gzipped once it's big enough for that to pay off. A protobuf message
+ * can't start with 0xff (that would be a tag with wire type 7), so raw values, the default and all older clients
+ * write, are recognised and read as they are.
+ */
+class CacheEncoding {
+  static final byte RAW = 0;
+  static final byte GZIP = 1;
+  private static final byte[] MAGIC = {(byte) 0xff, 'R', 'L'};
+  private static final int HEADER_LENGTH = MAGIC.length + 1;
+  private static final int MIN_GZIP_BYTES = 512;
+
+  private CacheEncoding() {
+  }
+
+  static byte[] encode(MessageLite message) {
+    final int size = message.getSerializedSize();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LENGTH + (size < MIN_GZIP_BYTES ? size : size / 4));
+    out.write(MAGIC, 0, MAGIC.length);
+    try {
+      if (size < MIN_GZIP_BYTES) {
+        out.write(RAW);
+        message.writeTo(out);
+      } else {
+        out.write(GZIP);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+          message.writeTo(gzip);
+        }
+      }
+    } catch (IOException e) {
+      // only writing to memory
+      throw new IllegalStateException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the protobuf bytes to parse
+   */
+  static InputStream decode(byte[] bytes) throws IOException {
+    if (!hasHeader(bytes)) {
+      return new ByteArrayInputStream(bytes);
+    }
+    final InputStream body = new ByteArrayInputStream(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+    switch (bytes[MAGIC.length]) {
+      case RAW:
+        return body;
+      case GZIP:
+        return new GZIPInputStream(body);
+      default:
+        throw new IOException("Unknown cache encoding " + bytes[MAGIC.length]);
+    }
+  }
+
+  private static boolean hasHeader(byte[] bytes) {
+    if (bytes.length < HEADER_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (bytes[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,194 @@
+package it.ratelim.client;
+
+import org.joda.time.DateTime;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the outcome and latency of the last windowSize calls without locking. Calls taking slowCallMillis or more
+ * count as failing (0 turns that off). Once at least minimumCalls are recorded and the failing share reaches
+ * errorRateThreshold the breaker opens for openMillis, then lets a single probe through: success closes it, failure
+ * or slowness opens it again, and a probe with no outcome after another openMillis is replaced by a new one. While
+ * open, only the probe's outcome counts; calls that started before it are ignored when they finish.
+ * A threshold of 0 never opens and only keeps latency percentiles (used for hedging).
+ */
+class CircuitBreaker {
+  private static final long EMPTY = 0;
+  private static final long FAILED = -1;
+  private static final long NO_PROBE = Long.MIN_VALUE;
+  private static final long PERCENTILE_REFRESH_MILLIS = 1000;
+
+  private final double errorRateThreshold;
+  private final int minimumCalls;
+  private final long openMillis;
+  private final long slowCallMillis;
+  private final AtomicLongArray outcomes;
+  private final AtomicLong cursor = new AtomicLong();
+  private final AtomicInteger recorded = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+  // System.nanoTime() when the current probe was let through
+  private final AtomicLong probeStartedAt = new AtomicLong(NO_PROBE);
+  private volatile long openUntil;
+
+  private volatile long[] sortedLatencies = new long[0];
+  private volatile long sortedAt;
+
+  CircuitBreaker(double errorRateThreshold, int windowSize, int minimumCalls, long openMillis) {
+    this(errorRateThreshold, windowSize, minimumCalls, openMillis, 0);
+  }
+
+  CircuitBreaker(double errorRateThreshold, int windowSize, int minimumCalls, long openMillis, long slowCallMillis) {
+    this.errorRateThreshold = errorRateThreshold;
+    this.minimumCalls = minimumCalls;
+    this.openMillis = openMillis;
+    this.slowCallMillis = slowCallMillis;
+    this.outcomes = new AtomicLongArray(windowSize);
+  }
+
+  /**
+   * take the call's start time after this returns true, it's how the probe is told apart from older calls
+   */
+  boolean allowRequest() {
+    final long until = openUntil;
+    if (until == 0) {
+      return true;
+    }
+    if (DateTime.now().getMillis() < until) {
+      return false;
+    }
+    final long probe = probeStartedAt.get();
+    final long now = System.nanoTime();
+    if (probe != NO_PROBE && now - probe < TimeUnit.MILLISECONDS.toNanos(openMillis)) {
+      return false;
+    }
+    return probeStartedAt.compareAndSet(probe, now);
+  }
+
+  /**
+   * whether allowRequest could let a call through now, without claiming the probe
+   */
+  boolean isAvailable() {
+    if (openUntil == 0) {
+      return true;
+    }
+    if (DateTime.now().getMillis() < openUntil) {
+      return false;
+    }
+    final long probe = probeStartedAt.get();
+    return probe == NO_PROBE || System.nanoTime() - probe >= TimeUnit.MILLISECONDS.toNanos(openMillis);
+  }
+
+  /**
+   * @param startNanos    System.nanoTime() when the call started
+   * @param latencyMillis
+   */
+  void recordSuccess(long startNanos, long latencyMillis) {
+    final boolean slow = slowCallMillis > 0 && latencyMillis >= slowCallMillis;
+    if (openUntil != 0) {
+      if (isProbe(startNanos)) {
+        if (slow) {
+          open();
+        } else {
+          close();
+        }
+      }
+      return;
+    }
+    // successes are stored as latency + 1 so that 0 can mean an empty slot, slow ones as -(latency + 2) so that
+    // they count as failing and still show in the percentiles
+    record(slow ? -(latencyMillis + 2) : latencyMillis + 1);
+    if (slow) {
+      openIfFailing();
+    }
+  }
+
+  /**
+   * @param startNanos System.nanoTime() when the call started
+   */
+  void recordFailure(long startNanos) {
+    if (openUntil != 0) {
+      if (isProbe(startNanos)) {
+        open();
+      }
+      return;
+    }
+    record(FAILED);
+    openIfFailing();
+  }
+
+  /**
+   * @return the latency at this percentile (0-1) of the recent successful calls, refreshed at most once a second
+   */
+  long percentileMillis(double percentile) {
+    final long now = DateTime.now().getMillis();
+    if (now - sortedAt > PERCENTILE_REFRESH_MILLIS) {
+      sortedAt = now;
+      final long[] latencies = new long[outcomes.length()];
+      int count = 0;
+      for (int i = 0; i < outcomes.length(); i++) {
+        final long outcome = outcomes.get(i);
+        if (outcome > 0) {
+          latencies[count++] = outcome - 1;
+        } else if (outcome < FAILED) {
+          latencies[count++] = -outcome - 2;
+        }
+      }
+      final long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      sortedLatencies = sorted;
+    }
+    final long[] sorted = sortedLatencies;
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(percentile * sorted.length))];
+  }
+
+  boolean isOpen() {
+    return openUntil != 0;
+  }
+
+  private void record(long outcome) {
+    final int slot = (int) (cursor.getAndIncrement() % outcomes.length());
+    final long previous = outcomes.getAndSet(slot, outcome);
+    if (previous == EMPTY) {
+      recorded.incrementAndGet();
+    } else if (previous < EMPTY) {
+      failures.decrementAndGet();
+    }
+    if (outcome < EMPTY) {
+      failures.incrementAndGet();
+    }
+  }
+
+  private void openIfFailing() {
+    final int calls = recorded.get();
+    if (errorRateThreshold > 0 && calls >= minimumCalls && failures.get() >= errorRateThreshold * calls) {
+      open();
+    }
+  }
+
+  private boolean isProbe(long startNanos) {
+    final long probe = probeStartedAt.get();
+    return probe != NO_PROBE && startNanos - probe >= 0;
+  }
+
+  private void open() {
+    openUntil = DateTime.now().getMillis() + openMillis;
+    probeStartedAt.set(NO_PROBE);
+  }
+
+  private void close() {
+    for (int i = 0; i < outcomes.length(); i++) {
+      outcomes.set(i, EMPTY);
+    }
+    recorded.set(0);
+    failures.set(0);
+    openUntil = 0;
+    probeStartedAt.set(NO_PROBE);
+  }
+}
@@ -0,0 +1,217 @@
+package it.ratelim.client;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import it.ratelim.client.util.RandomProvider;
+import it.ratelim.client.util.RandomProviderIF;
+import it.ratelim.data.RateLimitProtos;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Immutable, allocation free evaluator for a FeatureFlag, built once when flags are fetched.
+ * Buckets exactly like FeatureFlagWrapper: murmur3_32 of the bytes of accountId + feature + lookupKey.
+ * The account/feature prefix is hashed up front and the lookup key is streamed into that state as UTF-8.
+ * Bytes come from the platform default charset, so when that isn't UTF-8 non-ASCII keys take the allocating path.
+ */
+public class CompiledFeatureFlag {
+  private static final long UNSIGNED_INT_MAX = Integer.MAX_VALUE + (long) Integer.MAX_VALUE;
+  private static final int C1 = 0xcc9e2d51;
+  private static final int C2 = 0x1b873593;
+  private static final boolean DEFAULT_CHARSET_IS_UTF8 = Charset.defaultCharset().equals(StandardCharsets.UTF_8);
+
+  private final RateLimitProtos.FeatureFlag featureFlag;
+  private final ImmutableSet<String> whitelist;
+  private final double pct;
+
+  // murmur3 state after the whole 4 byte blocks of the prefix, plus the 0-3 bytes left over
+  private final String prefix;
+  private final int prefixH1;
+  private final int prefixTail;
+  private final int prefixTailBytes;
+  private final int prefixLength;
+
+  private final RandomProviderIF randomProvider;
+
+  public CompiledFeatureFlag(RateLimitProtos.FeatureFlag featureFlag) {
+    this(featureFlag, new RandomProvider());
+  }
+
+  public CompiledFeatureFlag(RateLimitProtos.FeatureFlag featureFlag, RandomProviderIF randomProvider) {
+    this.featureFlag = featureFlag;
+    this.whitelist = ImmutableSet.copyOf(featureFlag.getWhitelistedList());
+    this.pct = featureFlag.getPct();
+    this.randomProvider = randomProvider;
+
+    this.prefix = Long.toString(featureFlag.getAccountId()) + featureFlag.getFeature();
+    final byte[] prefix = this.prefix.getBytes();
+    final int blocks = prefix.length / 4 * 4;
+    int h1 = 0;
+    for (int i = 0; i < blocks; i += 4) {
+      h1 = mixH1(h1, mixK1((prefix[i] & 0xff)
+          | (prefix[i + 1] & 0xff) << 8
+          | (prefix[i + 2] & 0xff) << 16
+          | (prefix[i + 3] & 0xff) << 24));
+    }
+    int tail = 0;
+    for (int i = blocks; i < prefix.length; i++) {
+      tail |= (prefix[i] & 0xff) << (8 * (i - blocks));
+    }
+    this.prefixH1 = h1;
+    this.prefixTail = tail;
+    this.prefixTailBytes = prefix.length - blocks;
+    this.prefixLength = prefix.length;
+  }
+
+  public RateLimitProtos.FeatureFlag getFeatureFlag() {
+    return featureFlag;
+  }
+
+  public String getFeature() {
+    return featureFlag.getFeature();
+  }
+
+  /**
+   * @param lookupKey  may be null
+   * @param attributes not modified
+   */
+  public boolean isOnFor(String lookupKey, List<String> attributes) {
+    if (lookupKey != null && whitelist.contains(lookupKey)) {
+      return true;
+    }
+    for (int i = 0; i < attributes.size(); i++) {
+      if (whitelist.contains(attributes.get(i))) {
+        return true;
+      }
+    }
+    if (lookupKey != null) {
+      return getUserPct(lookupKey) < pct;
+    }
+    return pct > randomProvider.random();
+  }
+
+  /**
+   * the percentage rollout half of isOnFor, for a lookup key that was already encoded with the platform default
+   * charset (the same bytes FeatureFlagWrapper hashes), so many flags can share one encoding
+   *
+   * @param lookupKeyBytes null for no lookup key
+   */
+  boolean isInRollout(byte[] lookupKeyBytes) {
+    if (lookupKeyBytes != null) {
+      return getUserPct(lookupKeyBytes) < pct;
+    }
+    return pct > randomProvider.random();
+  }
+
+  double getUserPct(byte[] lookupKeyBytes) {
+    final long y = hash(lookupKeyBytes) & 0x00000000ffffffffL;
+    return y / (double) (UNSIGNED_INT_MAX);
+  }
+
+  double getUserPct(String lookupKey) {
+    final long y = hash(lookupKey) & 0x00000000ffffffffL;
+    return y / (double) (UNSIGNED_INT_MAX);
+  }
+
+  private int hash(String lookupKey) {
+    int h1 = prefixH1;
+    int tail = prefixTail;
+    int tailBytes = prefixTailBytes;
+    int length = prefixLength;
+
+    final int chars = lookupKey.length();
+    for (int i = 0; i < chars; i++) {
+      final char c = lookupKey.charAt(i);
+      if (c >= 0x80 && !DEFAULT_CHARSET_IS_UTF8) {
+        return Hashing.murmur3_32().hashBytes((prefix + lookupKey).getBytes()).asInt();
+      }
+      // encode one code point as UTF-8 into up to 4 bytes, low byte first
+      int encoded;
+      int byteCount;
+      if (c < 0x80) {
+        encoded = c;
+        byteCount = 1;
+      } else if (c < 0x800) {
+        encoded = (0xc0 | c >> 6) | (0x80 | c & 0x3f) << 8;
+        byteCount = 2;
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(lookupKey.charAt(i + 1))) {
+          final int codePoint = Character.toCodePoint(c, lookupKey.charAt(++i));
+          encoded = (0xf0 | codePoint >> 18)
+              | (0x80 | codePoint >> 12 & 0x3f) << 8
+              | (0x80 | codePoint >> 6 & 0x3f) << 16
+              | (0x80 | codePoint & 0x3f) << 24;
+          byteCount = 4;
+        } else {
+          // unpaired surrogate, String.getBytes(UTF_8) substitutes '?'
+          encoded = '?';
+          byteCount = 1;
+        }
+      } else {
+        encoded = (0xe0 | c >> 12) | (0x80 | c >> 6 & 0x3f) << 8 | (0x80 | c & 0x3f) << 16;
+        byteCount = 3;
+      }
+
+      for (int b = 0; b < byteCount; b++) {
+        tail |= (encoded >>> (8 * b) & 0xff) << (8 * tailBytes);
+        if (++tailBytes == 4) {
+          h1 = mixH1(h1, mixK1(tail));
+          tail = 0;
+          tailBytes = 0;
+        }
+      }
+      length += byteCount;
+    }
+
+    if (tailBytes > 0) {
+      h1 ^= mixK1(tail);
+    }
+    return fmix(h1, length);
+  }
+
+  private int hash(byte[] lookupKey) {
+    int h1 = prefixH1;
+    int tail = prefixTail;
+    int tailBytes = prefixTailBytes;
+
+    for (byte b : lookupKey) {
+      tail |= (b & 0xff) << (8 * tailBytes);
+      if (++tailBytes == 4) {
+        h1 = mixH1(h1, mixK1(tail));
+        tail = 0;
+        tailBytes = 0;
+      }
+    }
+
+    if (tailBytes > 0) {
+      h1 ^= mixK1(tail);
+    }
+    return fmix(h1, prefixLength + lookupKey.length);
+  }
+
+  private static int mixK1(int k1) {
+    k1 *= C1;
+    k1 = Integer.rotateLeft(k1, 15);
+    k1 *= C2;
+    return k1;
+  }
+
+  private static int mixH1(int h1, int k1) {
+    h1 ^= k1;
+    h1 = Integer.rotateLeft(h1, 13);
+    h1 = h1 * 5 + 0xe6546b64;
+    return h1;
+  }
+
+  private static int fmix(int h1, int length) {
+    h1 ^= length;
+    h1 ^= h1 >>> 16;
+    h1 *= 0x85ebca6b;
+    h1 ^= h1 >>> 13;
+    h1 *= 0xc2b2ae35;
+    h1 ^= h1 >>> 16;
+    return h1;
+  }
+}
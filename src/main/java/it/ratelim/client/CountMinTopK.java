@@ -0,0 +1,156 @@
+package it.ratelim.client;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Approximate counts of a stream of keys in fixed memory, and the k keys counted most. A count-min sketch (DEPTH rows
+ * of width counters, estimate = the smallest of a key's counters, so never an undercount) sits in front of a candidate
+ * set that keeps the keys whose estimate reached the current top k, space saving style. Adding is a few atomic
+ * increments; the long tail stops there, and only keys at or above the floor touch the candidate map. When that map
+ * grows to 2k one thread trims it back to k and raises the floor, the others carry on without waiting.
+ */
+class CountMinTopK {
+  private static final int[] ROW_SEEDS = {0, 0x9e3779b9, 0x3c6ef372, 0xdaa66d2b};
+  private static final int DEPTH = ROW_SEEDS.length;
+  private static final int MIN_WIDTH = 4096;
+  // with DEPTH 4 an estimate is off by more than 2 * total / width less than 1 in 16 times
+  private static final int WIDTH_PER_KEY = 64;
+  private static final Comparator<Map.Entry<String, Long>> MOST_FIRST = (a, b) -> Long.compare(b.getValue(), a.getValue());
+
+  private final int topK;
+  private final int width;
+  private final AtomicLongArray counts;
+  private final ConcurrentHashMap<String, AtomicLong> candidates = new ConcurrentHashMap<>();
+  private final AtomicBoolean trimming = new AtomicBoolean();
+  private final LongAdder total = new LongAdder();
+  private volatile long floor;
+
+  CountMinTopK(int topK) {
+    if (topK < 1) {
+      throw new IllegalArgumentException("topK must be positive, was " + topK);
+    }
+    this.topK = topK;
+    this.width = Integer.highestOneBit(Math.max(MIN_WIDTH, topK * WIDTH_PER_KEY) - 1) << 1;
+    this.counts = new AtomicLongArray(DEPTH * width);
+  }
+
+  void add(String key) {
+    total.increment();
+    final int hash = key.hashCode();
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      estimate = Math.min(estimate, counts.incrementAndGet(index(hash, row)));
+    }
+    if (estimate < floor) {
+      return;
+    }
+    final AtomicLong candidate = candidates.get(key);
+    if (candidate != null) {
+      if (candidate.get() < estimate) {
+        candidate.set(estimate);
+      }
+      return;
+    }
+    candidates.putIfAbsent(key, new AtomicLong(estimate));
+    if (candidates.size() > 2 * topK) {
+      trim();
+    }
+  }
+
+  long estimate(String key) {
+    final int hash = key.hashCode();
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      estimate = Math.min(estimate, counts.get(index(hash, row)));
+    }
+    return estimate;
+  }
+
+  /**
+   * @return up to topK keys with their estimated counts, most counted first
+   */
+  ImmutableMap<String, Long> top() {
+    final List<Map.Entry<String, Long>> entries = new ArrayList<>(candidates.size());
+    for (String key : candidates.keySet()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<>(key, estimate(key)));
+    }
+    entries.sort(MOST_FIRST);
+    final ImmutableMap.Builder<String, Long> top = ImmutableMap.builder();
+    for (int i = 0; i < Math.min(topK, entries.size()); i++) {
+      top.put(entries.get(i).getKey(), entries.get(i).getValue());
+    }
+    return top.build();
+  }
+
+  long getTotal() {
+    return total.sum();
+  }
+
+  /**
+   * halve every count, so that what was counted long ago fades and the top follows current traffic. Adds racing with
+   * this may be halved or not, which only nudges their counts
+   */
+  void decay() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.getAndUpdate(i, count -> count >> 1);
+    }
+    for (AtomicLong candidate : candidates.values()) {
+      candidate.getAndUpdate(count -> count >> 1);
+    }
+    floor = floor >> 1;
+    final long counted = total.sumThenReset();
+    total.add(counted >> 1);
+  }
+
+  private void trim() {
+    if (!trimming.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      // sort a copy of the counts, they keep changing underneath
+      final List<Map.Entry<String, Long>> entries = new ArrayList<>(candidates.size());
+      for (Map.Entry<String, AtomicLong> candidate : candidates.entrySet()) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(candidate.getKey(), candidate.getValue().get()));
+      }
+      if (entries.size() <= topK) {
+        return;
+      }
+      entries.sort(MOST_FIRST);
+      for (int i = topK; i < entries.size(); i++) {
+        candidates.remove(entries.get(i).getKey());
+      }
+      // a key has to beat the smallest kept count to come back in
+      floor = entries.get(topK - 1).getValue() + 1;
+    } finally {
+      trimming.set(false);
+    }
+  }
+
+  /**
+   * each row mixes the whole hash on its own, so two keys share every counter only if their String hashes are equal.
+   * Deriving rows from two hashes (h1 + row * h2) would keep just 2 * log2(width) bits
+   */
+  private int index(int hash, int row) {
+    return row * width + (fmix(hash + ROW_SEEDS[row]) & width - 1);
+  }
+
+  private static int fmix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,66 @@
+package it.ratelim.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import it.ratelim.data.RateLimitProtos;
+import org.joda.time.DateTime;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers denials until their limit_reset_at so repeat checks of an exhausted group can be answered locally.
+ * Only single group checks are cached, and only denials of a single token, which also imply a denial for any larger amount.
+ */
+class DenialCache {
+  private static final long MAX_DENIAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final Cache<String, RateLimitProtos.LimitResponse> denials;
+
+  DenialCache(int maximumSize) {
+    denials = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(MAX_DENIAL_MILLIS, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * @return the cached denial, or null if the service has to be asked
+   */
+  RateLimitProtos.LimitResponse get(RateLimitProtos.LimitRequest limitRequest) {
+    if (limitRequest.getGroupsCount() != 1) {
+      return null;
+    }
+    final String key = key(limitRequest);
+    final RateLimitProtos.LimitResponse denial = denials.getIfPresent(key);
+    if (denial == null) {
+      return null;
+    }
+    if (denial.getLimitResetAt() <= DateTime.now().getMillis()) {
+      denials.invalidate(key);
+      return null;
+    }
+    return denial;
+  }
+
+  /**
+   * @return true if the response was cached
+   */
+  boolean record(RateLimitProtos.LimitRequest limitRequest, RateLimitProtos.LimitResponse limitResponse) {
+    if (limitResponse.getPassed()
+        || limitRequest.getGroupsCount() != 1
+        || limitRequest.getAcquireAmount() != 1
+        || limitResponse.getLimitResetAt() <= DateTime.now().getMillis()) {
+      return false;
+    }
+    denials.put(key(limitRequest), limitResponse);
+    return true;
+  }
+
+  long size() {
+    return denials.size();
+  }
+
+  private static String key(RateLimitProtos.LimitRequest limitRequest) {
+    return LimitDefinitionIndex.partitionedKey(limitRequest.getGroups(0), limitRequest.getPartitionKey());
+  }
+}
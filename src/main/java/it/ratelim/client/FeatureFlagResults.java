@@ -0,0 +1,54 @@
+package it.ratelim.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Every flag of the account evaluated for one lookup key and set of attributes, from ApiClient.evaluateAll.
+ * Bit i is feature i; ordinals are only stable within one result, since flags can come and go between snapshots.
+ * Features the account doesn't have are off, as with featureIsOnFor.
+ */
+public class FeatureFlagResults {
+  static final FeatureFlagResults NONE = new FeatureFlagResults(ImmutableList.of(), ImmutableMap.of(), new BitSet());
+
+  private final ImmutableList<String> features;
+  private final ImmutableMap<String, Integer> ordinals;
+  private final BitSet on;
+
+  FeatureFlagResults(ImmutableList<String> features, ImmutableMap<String, Integer> ordinals, BitSet on) {
+    this.features = features;
+    this.ordinals = ordinals;
+    this.on = on;
+  }
+
+  public boolean isOn(String feature) {
+    final Integer ordinal = ordinals.get(feature);
+    return ordinal != null && on.get(ordinal);
+  }
+
+  public boolean isOn(int ordinal) {
+    return on.get(ordinal);
+  }
+
+  /**
+   * @return -1 if the account has no such flag
+   */
+  public int getOrdinal(String feature) {
+    final Integer ordinal = ordinals.get(feature);
+    return ordinal == null ? -1 : ordinal;
+  }
+
+  /**
+   * @return a copy, bit i set if getFeatures().get(i) is on
+   */
+  public BitSet getOn() {
+    return (BitSet) on.clone();
+  }
+
+  public List<String> getFeatures() {
+    return features;
+  }
+}
@@ -0,0 +1,96 @@
+package it.ratelim.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import it.ratelim.data.RateLimitProtos;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every flag for the account, compiled and indexed by feature. Immutable so it can be swapped in with a single volatile write.
+ * Features also get ordinals, in the order the service listed them, and an inverted whitelist index from each
+ * whitelisted key to the ordinals it turns on, for evaluateAll.
+ */
+class FeatureFlagSnapshot {
+  private final RateLimitProtos.FeatureFlags featureFlags;
+  private final ImmutableMap<String, CompiledFeatureFlag> byFeature;
+  private final CompiledFeatureFlag[] byOrdinal;
+  private final ImmutableList<String> features;
+  private final ImmutableMap<String, Integer> ordinals;
+  private final ImmutableMap<String, BitSet> whitelisted;
+
+  FeatureFlagSnapshot(RateLimitProtos.FeatureFlags featureFlags) {
+    this.featureFlags = featureFlags;
+    final Map<String, CompiledFeatureFlag> byFeature = new LinkedHashMap<>();
+    for (RateLimitProtos.FeatureFlag featureFlag : featureFlags.getFlagsList()) {
+      // first one wins, as the old linear scan did
+      if (!byFeature.containsKey(featureFlag.getFeature())) {
+        byFeature.put(featureFlag.getFeature(), new CompiledFeatureFlag(featureFlag));
+      }
+    }
+    this.byFeature = ImmutableMap.copyOf(byFeature);
+    this.byOrdinal = byFeature.values().toArray(new CompiledFeatureFlag[byFeature.size()]);
+    this.features = ImmutableList.copyOf(byFeature.keySet());
+
+    final ImmutableMap.Builder<String, Integer> ordinals = ImmutableMap.builder();
+    final Map<String, BitSet> whitelisted = new HashMap<>();
+    for (int i = 0; i < byOrdinal.length; i++) {
+      ordinals.put(features.get(i), i);
+      for (String key : byOrdinal[i].getFeatureFlag().getWhitelistedList()) {
+        whitelisted.computeIfAbsent(key, ignored -> new BitSet(byOrdinal.length)).set(i);
+      }
+    }
+    this.ordinals = ordinals.build();
+    this.whitelisted = ImmutableMap.copyOf(whitelisted);
+  }
+
+  /**
+   * @return null if the account has no such flag
+   */
+  CompiledFeatureFlag get(String feature) {
+    return byFeature.get(feature);
+  }
+
+  /**
+   * Same answers as calling isOnFor on every flag, but the lookup key and attributes each cost one whitelist
+   * lookup in total, and the key is encoded once and only hashed for flags the whitelists didn't already turn on.
+   *
+   * @param lookupKey  may be null
+   * @param attributes not modified
+   */
+  FeatureFlagResults evaluateAll(String lookupKey, List<String> attributes) {
+    final BitSet on = new BitSet(byOrdinal.length);
+    if (lookupKey != null) {
+      addWhitelisted(on, lookupKey);
+    }
+    for (int i = 0; i < attributes.size(); i++) {
+      addWhitelisted(on, attributes.get(i));
+    }
+    final byte[] lookupKeyBytes = lookupKey == null ? null : lookupKey.getBytes();
+    for (int i = on.nextClearBit(0); i < byOrdinal.length; i = on.nextClearBit(i + 1)) {
+      if (byOrdinal[i].isInRollout(lookupKeyBytes)) {
+        on.set(i);
+      }
+    }
+    return new FeatureFlagResults(features, ordinals, on);
+  }
+
+  RateLimitProtos.FeatureFlags getFeatureFlags() {
+    return featureFlags;
+  }
+
+  boolean hasSameFlags(RateLimitProtos.FeatureFlags other) {
+    return featureFlags.getFlagsList().equals(other.getFlagsList());
+  }
+
+  private void addWhitelisted(BitSet on, String key) {
+    final BitSet ordinals = whitelisted.get(key);
+    if (ordinals != null) {
+      on.or(ordinals);
+    }
+  }
+}
@@ -10,33 +10,26 @@ import it.ratelim.data.RateLimitProtos;
 import java.util.List;
 import java.util.Optional;
 
+/**
+ * Per-call view of a FeatureFlag. Evaluation is done by a CompiledFeatureFlag, which ApiClient builds once per fetch.
+ */
 public class FeatureFlagWrapper {
   private static final HashFunction hash = Hashing.murmur3_32();
   private static final long UNSIGNED_INT_MAX = Integer.MAX_VALUE + (long) Integer.MAX_VALUE;
   private final RateLimitProtos.FeatureFlag featureFlag;
 
   private RandomProviderIF randomProvider = new RandomProvider();
+  private CompiledFeatureFlag compiledFeatureFlag;
 
   public FeatureFlagWrapper(RateLimitProtos.FeatureFlag featureFlag) {
     this.featureFlag = featureFlag;
   }
 
   public boolean isOnFor(Optional<String> key, List<String> attributes) {
-
-    if (key.isPresent()) {
-      attributes.add(key.get());
-    }
-    attributes.retainAll(featureFlag.getWhitelistedList());
-    if (!attributes.isEmpty()) {
-      return true;
+    if (compiledFeatureFlag == null) {
+      compiledFeatureFlag = new CompiledFeatureFlag(featureFlag, randomProvider);
     }
-
-    if (key.isPresent()) {
-      final String toHash = String.format("%d%s%s", featureFlag.getAccountId(), featureFlag.getFeature(), key.get());
-      return getUserPct(toHash) < featureFlag.getPct();
-    }
-
-    return featureFlag.getPct() > randomProvider.random();
+    return compiledFeatureFlag.isOnFor(key.orElse(null), attributes);
   }
 
   double getUserPct(String toHash) {
@@ -51,6 +44,7 @@ public class FeatureFlagWrapper {
 
   public FeatureFlagWrapper setRandomProvider(RandomProviderIF randomProvider) {
     this.randomProvider = randomProvider;
+    this.compiledFeatureFlag = null;
     return this;
   }
 }
@@ -0,0 +1,80 @@
+package it.ratelim.client;
+
+import com.google.common.collect.ImmutableMap;
+import it.ratelim.data.RateLimitProtos;
+
+/**
+ * One CountMinTopK each for checked groups, checked group and partition key pairs, denied groups and looked up flags.
+ * Memory is fixed by topK whatever the number of distinct keys: about 4 * 4 * 64 * topK counters.
+ */
+class HeavyHitterTracker {
+  private final CountMinTopK checks;
+  private final CountMinTopK partitionChecks;
+  private final CountMinTopK denials;
+  private final CountMinTopK flagLookups;
+
+  HeavyHitterTracker(int topK) {
+    this.checks = new CountMinTopK(topK);
+    this.partitionChecks = new CountMinTopK(topK);
+    this.denials = new CountMinTopK(topK);
+    this.flagLookups = new CountMinTopK(topK);
+  }
+
+  void recordCheck(RateLimitProtos.LimitRequest limitRequest) {
+    for (int i = 0; i < limitRequest.getGroupsCount(); i++) {
+      checks.add(limitRequest.getGroups(i));
+      if (!limitRequest.getPartitionKey().isEmpty()) {
+        partitionChecks.add(LimitDefinitionIndex.partitionedKey(limitRequest.getGroups(i), limitRequest.getPartitionKey()));
+      }
+    }
+  }
+
+  void recordCheck(String group) {
+    checks.add(group);
+  }
+
+  void recordDenial(RateLimitProtos.LimitRequest limitRequest) {
+    for (int i = 0; i < limitRequest.getGroupsCount(); i++) {
+      denials.add(limitRequest.getGroups(i));
+    }
+  }
+
+  void recordDenial(String group) {
+    denials.add(group);
+  }
+
+  void recordFlagLookup(String feature) {
+    flagLookups.add(feature);
+  }
+
+  void decay() {
+    checks.decay();
+    partitionChecks.decay();
+    denials.decay();
+    flagLookups.decay();
+  }
+
+  HeavyHitters snapshot() {
+    return new HeavyHitters(
+        checks.top(), checks.getTotal(),
+        partitionChecks.top(), partitionChecks.getTotal(),
+        denials.top(), denials.getTotal(),
+        flagLookups.top(), flagLookups.getTotal());
+  }
+
+  ImmutableMap<String, Long> topChecks() {
+    return checks.top();
+  }
+
+  ImmutableMap<String, Long> topPartitionChecks() {
+    return partitionChecks.top();
+  }
+
+  ImmutableMap<String, Long> topDenials() {
+    return denials.top();
+  }
+
+  ImmutableMap<String, Long> topFlagLookups() {
+    return flagLookups.top();
+  }
+}
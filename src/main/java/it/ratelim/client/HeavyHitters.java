@@ -0,0 +1,79 @@
+package it.ratelim.client;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The most checked groups and group, partition key pairs, most denied groups and most looked up flags, from
+ * ApiClient.getHeavyHitters. Counts are count-min estimates (never under, sometimes a little over) and decay by half
+ * every few minutes, so they follow recent traffic; compare them to the totals, which decay the same way. Each map
+ * iterates most counted first.
+ */
+public class HeavyHitters {
+  static final HeavyHitters NONE = new HeavyHitters(ImmutableMap.of(), 0, ImmutableMap.of(), 0, ImmutableMap.of(), 0,
+      ImmutableMap.of(), 0);
+
+  private final ImmutableMap<String, Long> checks;
+  private final long checkTotal;
+  private final ImmutableMap<String, Long> partitionChecks;
+  private final long partitionCheckTotal;
+  private final ImmutableMap<String, Long> denials;
+  private final long denialTotal;
+  private final ImmutableMap<String, Long> flagLookups;
+  private final long flagLookupTotal;
+
+  HeavyHitters(ImmutableMap<String, Long> checks, long checkTotal,
+               ImmutableMap<String, Long> partitionChecks, long partitionCheckTotal,
+               ImmutableMap<String, Long> denials, long denialTotal,
+               ImmutableMap<String, Long> flagLookups, long flagLookupTotal) {
+    this.checks = checks;
+    this.checkTotal = checkTotal;
+    this.partitionChecks = partitionChecks;
+    this.partitionCheckTotal = partitionCheckTotal;
+    this.denials = denials;
+    this.denialTotal = denialTotal;
+    this.flagLookups = flagLookups;
+    this.flagLookupTotal = flagLookupTotal;
+  }
+
+  /**
+   * limit checks by group, including groups answered locally (leases, denial cache)
+   */
+  public ImmutableMap<String, Long> getChecks() {
+    return checks;
+  }
+
+  public long getCheckTotal() {
+    return checkTotal;
+  }
+
+  /**
+   * limit checks with a partition_key, by group and partition key: the group, a NUL character, then the partition
+   * key base64 encoded. Leased groups are counted locally without one, so they only show in getChecks
+   */
+  public ImmutableMap<String, Long> getPartitionChecks() {
+    return partitionChecks;
+  }
+
+  public long getPartitionCheckTotal() {
+    return partitionCheckTotal;
+  }
+
+  public ImmutableMap<String, Long> getDenials() {
+    return denials;
+  }
+
+  public long getDenialTotal() {
+    return denialTotal;
+  }
+
+  /**
+   * featureIsOn/featureIsOnFor calls by feature. evaluateAll looks up every flag at once, so it isn't counted
+   */
+  public ImmutableMap<String, Long> getFlagLookups() {
+    return flagLookups;
+  }
+
+  public long getFlagLookupTotal() {
+    return flagLookupTotal;
+  }
+}
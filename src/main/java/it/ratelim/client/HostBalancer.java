@@ -0,0 +1,259 @@
+package it.ratelim.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Spreads requests over the service hosts a client was built with. Each host keeps a time decayed EWMA of its
+ * latency and error rate, updated without locks as calls finish, and choose() takes the cheaper of two hosts picked
+ * at random (power of two choices), where cost is latency scaled by the error rate and by the calls still in flight.
+ * A host nothing was sent to for probeMillis is chosen once, which refreshes its numbers and keeps a pooled
+ * connection to it open for when the others fail; hosts whose (time decayed) error rate is still high are left out
+ * of that. With circuit breakers each host gets its own, and a host whose breaker is open is skipped until it lets
+ * a probe through, so one bad host doesn't cut off the others.
+ */
+class HostBalancer {
+  private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+  // however busy a host is, each call moves its numbers at least this far, so a host going bad shows within tens of calls
+  private static final double MIN_SAMPLE_WEIGHT = 0.05;
+  // a host failing every call costs as much as one 10x slower
+  private static final double ERROR_PENALTY = 9;
+  // an idle host failing more often than this isn't probed with real requests
+  private static final double PROBE_MAX_ERROR_RATE = 0.5;
+  private static final Comparator<Host> CHEAPEST_FIRST = Comparator.comparingDouble(Host::cost);
+
+  private final Host[] hosts;
+  private final long probeNanos;
+
+  HostBalancer(List<HttpHost> hosts, long probeMillis) {
+    this(hosts, probeMillis, () -> null);
+  }
+
+  /**
+   * @param circuitBreakers called once per host, may return null for none
+   */
+  HostBalancer(List<HttpHost> hosts, long probeMillis, Supplier<CircuitBreaker> circuitBreakers) {
+    if (hosts.isEmpty()) {
+      throw new IllegalArgumentException("at least one host is needed");
+    }
+    this.hosts = new Host[hosts.size()];
+    for (int i = 0; i < this.hosts.length; i++) {
+      this.hosts[i] = new Host(hosts.get(i), Optional.ofNullable(circuitBreakers.get()));
+    }
+    this.probeNanos = TimeUnit.MILLISECONDS.toNanos(probeMillis);
+  }
+
+  /**
+   * @return null if every host's circuit breaker is open
+   */
+  Host choose() {
+    if (hosts.length == 1) {
+      return hosts[0].allowRequest() ? hosts[0] : null;
+    }
+    final long now = System.nanoTime();
+    for (Host host : hosts) {
+      final long lastChosen = host.lastChosen.get();
+      if (probeNanos > 0 && now - lastChosen > probeNanos && host.errorRate(now) < PROBE_MAX_ERROR_RATE
+          && host.isAvailable() && host.lastChosen.compareAndSet(lastChosen, now) && host.allowRequest()) {
+        return host;
+      }
+    }
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int firstIndex = random.nextInt(hosts.length);
+    int secondIndex = random.nextInt(hosts.length - 1);
+    if (secondIndex >= firstIndex) {
+      secondIndex++;
+    }
+    final Host first = hosts[firstIndex];
+    final Host second = hosts[secondIndex];
+    Host chosen;
+    if (!first.isAvailable()) {
+      chosen = second;
+    } else if (!second.isAvailable()) {
+      chosen = first;
+    } else {
+      chosen = first.cost() <= second.cost() ? first : second;
+    }
+    if (!chosen.allowRequest()) {
+      chosen = cheapestAllowed(null);
+      if (chosen == null) {
+        return null;
+      }
+    }
+    chosen.lastChosen.lazySet(now);
+    return chosen;
+  }
+
+  /**
+   * @return where to resend a request that failed on host, or null if it must not be resent. Only failures to
+   * connect qualify, the service can't have seen those requests
+   */
+  Host failoverFrom(Host host, Throwable failure) {
+    if (hosts.length == 1 || !isConnectFailure(failure)) {
+      return null;
+    }
+    final Host best = cheapestAllowed(host);
+    if (best != null) {
+      best.lastChosen.lazySet(System.nanoTime());
+    }
+    return best;
+  }
+
+  /**
+   * @return the cheapest host other than exclude whose breaker lets a call through, or null if there's none
+   */
+  private Host cheapestAllowed(Host exclude) {
+    final List<Host> candidates = new ArrayList<>(hosts.length);
+    for (Host candidate : hosts) {
+      if (candidate != exclude && candidate.isAvailable()) {
+        candidates.add(candidate);
+      }
+    }
+    candidates.sort(CHEAPEST_FIRST);
+    for (Host candidate : candidates) {
+      if (candidate.allowRequest()) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  Host[] getHosts() {
+    return hosts.clone();
+  }
+
+  static boolean isConnectFailure(Throwable failure) {
+    return failure instanceof ConnectException
+        || failure instanceof ConnectTimeoutException
+        || failure instanceof NoRouteToHostException
+        || failure instanceof UnknownHostException;
+  }
+
+  static class Host {
+    private final HttpHost httpHost;
+    private final Optional<CircuitBreaker> circuitBreaker;
+    private final AtomicReference<Stats> stats = new AtomicReference<>(new Stats(0, 0, System.nanoTime()));
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong lastChosen = new AtomicLong(System.nanoTime());
+
+    Host(HttpHost httpHost, Optional<CircuitBreaker> circuitBreaker) {
+      this.httpHost = httpHost;
+      this.circuitBreaker = circuitBreaker;
+    }
+
+    HttpHost getHttpHost() {
+      return httpHost;
+    }
+
+    /**
+     * @return the start time to hand back to finished
+     */
+    long started() {
+      inFlight.incrementAndGet();
+      return System.nanoTime();
+    }
+
+    /**
+     * @param failed latency isn't updated for failures, only the error rate
+     */
+    void finished(long startNanos, boolean failed) {
+      inFlight.decrementAndGet();
+      final long now = System.nanoTime();
+      final long latency = now - startNanos;
+      if (circuitBreaker.isPresent()) {
+        if (failed) {
+          circuitBreaker.get().recordFailure(startNanos);
+        } else {
+          circuitBreaker.get().recordSuccess(startNanos, TimeUnit.NANOSECONDS.toMillis(latency));
+        }
+      }
+      Stats current;
+      Stats next;
+      do {
+        current = stats.get();
+        final double weight = Math.min(1 - MIN_SAMPLE_WEIGHT, Math.exp(-Math.max(0, now - current.updatedAt) / DECAY_NANOS));
+        next = new Stats(
+            failed ? current.latencyNanos : current.latencyNanos == 0 ? latency : current.latencyNanos * weight + latency * (1 - weight),
+            current.errorRate * weight + (failed ? 1 - weight : 0),
+            now);
+      } while (!stats.compareAndSet(current, next));
+    }
+
+    /**
+     * hosts that haven't answered yet cost nothing, so each gets tried straight away, unless all they did was fail
+     */
+    double cost() {
+      final Stats current = stats.get();
+      if (current.latencyNanos == 0) {
+        return current.errorRate > 0 ? Double.MAX_VALUE : 0;
+      }
+      return current.latencyNanos * (1 + ERROR_PENALTY * current.errorRate) * (1 + inFlight.get());
+    }
+
+    /**
+     * the error rate decayed for the time since the last call finished, so a host left alone looks better over time
+     */
+    private double errorRate(long now) {
+      final Stats current = stats.get();
+      return current.errorRate * Math.exp(-Math.max(0, now - current.updatedAt) / DECAY_NANOS);
+    }
+
+    private boolean isAvailable() {
+      return !circuitBreaker.isPresent() || circuitBreaker.get().isAvailable();
+    }
+
+    /**
+     * claims the breaker's probe if it's half open
+     */
+    private boolean allowRequest() {
+      return !circuitBreaker.isPresent() || circuitBreaker.get().allowRequest();
+    }
+
+    boolean isOpen() {
+      return circuitBreaker.isPresent() && circuitBreaker.get().isOpen();
+    }
+
+    double getLatencyMillis() {
+      return stats.get().latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    double getErrorRate() {
+      return stats.get().errorRate;
+    }
+
+    int getInFlight() {
+      return inFlight.get();
+    }
+
+    @Override
+    public String toString() {
+      return httpHost.toString();
+    }
+  }
+
+  private static class Stats {
+    private final double latencyNanos;
+    private final double errorRate;
+    private final long updatedAt;
+
+    private Stats(double latencyNanos, double errorRate, long updatedAt) {
+      this.latencyNanos = latencyNanos;
+      this.errorRate = errorRate;
+      this.updatedAt = updatedAt;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+package it.ratelim.client;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free replacement for the default sampling reservoirs, which synchronize or lock on every update.
+ * Values land in log-linear buckets (4 per power of two, so within 25%) backed by LongAdders. Two windows of
+ * windowMillis rotate, and snapshots cover the current and the previous window, i.e. roughly the last 1-2 windows.
+ */
+class LatencyReservoir implements Reservoir {
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+
+  private final long windowNanos;
+  private final LongAdder[][] windows = new LongAdder[2][BUCKETS];
+  private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+  private volatile int current;
+
+  LatencyReservoir(long windowMillis) {
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    for (LongAdder[] window : windows) {
+      for (int i = 0; i < BUCKETS; i++) {
+        window[i] = new LongAdder();
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    return getSnapshot().size();
+  }
+
+  @Override
+  public void update(long value) {
+    rotateIfNecessary(System.nanoTime());
+    windows[current][bucket(Math.max(0, value))].increment();
+  }
+
+  @Override
+  public Snapshot getSnapshot() {
+    rotateIfNecessary(System.nanoTime());
+    final long[] counts = new long[BUCKETS];
+    for (LongAdder[] window : windows) {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] += window[i].sum();
+      }
+    }
+    return new BucketSnapshot(counts);
+  }
+
+  /**
+   * one caller wins the CAS and clears the older window. Updates racing with the clear may be dropped, which is fine for a histogram
+   */
+  private void rotateIfNecessary(long now) {
+    final long start = windowStart.get();
+    final long elapsed = now - start;
+    if (elapsed < windowNanos || !windowStart.compareAndSet(start, now)) {
+      return;
+    }
+    final int next = 1 - current;
+    reset(windows[next]);
+    if (elapsed >= 2 * windowNanos) {
+      reset(windows[current]);
+    }
+    current = next;
+  }
+
+  private static void reset(LongAdder[] window) {
+    for (LongAdder adder : window) {
+      adder.reset();
+    }
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+  }
+
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = (bucket >> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+    final long subBucket = bucket & (SUB_BUCKETS - 1);
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  static long upperBound(int bucket) {
+    final long nextLowerBound = bucket + 1 < BUCKETS ? lowerBound(bucket + 1) : 0;
+    return nextLowerBound <= 0 ? Long.MAX_VALUE : nextLowerBound - 1;
+  }
+
+  /**
+   * every value in a bucket is reported as the bucket midpoint
+   */
+  private static long midpoint(int bucket) {
+    final long lower = lowerBound(bucket);
+    return lower + (upperBound(bucket) - lower) / 2;
+  }
+
+  private static class BucketSnapshot extends Snapshot {
+    private final long[] counts;
+    private final long total;
+
+    BucketSnapshot(long[] counts) {
+      this.counts = counts;
+      long total = 0;
+      for (long count : counts) {
+        total += count;
+      }
+      this.total = total;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+        throw new IllegalArgumentException(quantile + " is not in [0..1]");
+      }
+      if (total == 0) {
+        return 0;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return midpoint(i);
+        }
+      }
+      return getMax();
+    }
+
+    /**
+     * @return the midpoint of every non empty bucket, ascending
+     */
+    @Override
+    public long[] getValues() {
+      final long[] values = new long[counts.length];
+      int count = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          values[count++] = midpoint(i);
+        }
+      }
+      return Arrays.copyOf(values, count);
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(Integer.MAX_VALUE, total);
+    }
+
+    @Override
+    public long getMax() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] > 0) {
+          return midpoint(i);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public double getMean() {
+      if (total == 0) {
+        return 0;
+      }
+      double sum = 0;
+      for (int i = 0; i < counts.length; i++) {
+        sum += (double) counts[i] * midpoint(i);
+      }
+      return sum / total;
+    }
+
+    @Override
+    public long getMin() {
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          return midpoint(i);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public double getStdDev() {
+      if (total <= 1) {
+        return 0;
+      }
+      final double mean = getMean();
+      double sum = 0;
+      for (int i = 0; i < counts.length; i++) {
+        final double diff = midpoint(i) - mean;
+        sum += counts[i] * diff * diff;
+      }
+      return Math.sqrt(sum / (total - 1));
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+        for (long value : getValues()) {
+          out.printf("%d%n", value);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Collects concurrent limit checks and sends them as one LimitRequests round trip,
+ * either every batchWindowMillis or as soon as maxBatchSize checks are waiting.
+ */
+class LimitCheckBatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(LimitCheckBatcher.class);
+
+  private final ConcurrentLinkedQueue<PendingCheck> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final ConcurrentLinkedQueue<CompletableFuture<?>> inFlight = new ConcurrentLinkedQueue<>();
+  private final int maxBatchSize;
+  private final Function<RateLimitProtos.LimitRequests, CompletableFuture<RateLimitProtos.LimitResponses>> sender;
+  private final ScheduledExecutorService scheduler;
+  private final ScheduledFuture<?> windowFlush;
+
+  LimitCheckBatcher(long batchWindowMillis, int maxBatchSize,
+                    Function<RateLimitProtos.LimitRequests, CompletableFuture<RateLimitProtos.LimitResponses>> sender,
+                    ScheduledExecutorService scheduler) {
+    this.maxBatchSize = maxBatchSize;
+    this.sender = sender;
+    this.scheduler = scheduler;
+    this.windowFlush = scheduler.scheduleAtFixedRate(this::flush, batchWindowMillis, batchWindowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  CompletableFuture<RateLimitProtos.LimitResponse> submit(RateLimitProtos.LimitRequest limitRequest) {
+    final PendingCheck check = new PendingCheck(limitRequest);
+    pending.add(check);
+    if (pendingCount.incrementAndGet() >= maxBatchSize) {
+      scheduler.execute(this::flush);
+    }
+    return check.future;
+  }
+
+  void flush() {
+    List<PendingCheck> batch;
+    while (!(batch = drain()).isEmpty()) {
+      send(batch);
+    }
+  }
+
+  private List<PendingCheck> drain() {
+    List<PendingCheck> batch = new ArrayList<>(Math.min(pendingCount.get(), maxBatchSize));
+    PendingCheck check;
+    while (batch.size() < maxBatchSize && (check = pending.poll()) != null) {
+      pendingCount.decrementAndGet();
+      batch.add(check);
+    }
+    return batch;
+  }
+
+  private void send(List<PendingCheck> batch) {
+    final RateLimitProtos.LimitRequests.Builder requests = RateLimitProtos.LimitRequests.newBuilder();
+    for (PendingCheck check : batch) {
+      requests.addRequests(check.limitRequest);
+    }
+    final CompletableFuture<Void> sent = sender.apply(requests.build())
+        .handle((limitResponses, e) -> {
+          if (e == null && limitResponses.getResponsesCount() != batch.size()) {
+            e = new IOException("Expected " + batch.size() + " responses but got " + limitResponses.getResponsesCount());
+          }
+          for (int i = 0; i < batch.size(); i++) {
+            if (e == null) {
+              batch.get(i).future.complete(limitResponses.getResponses(i));
+            } else {
+              batch.get(i).future.completeExceptionally(e);
+            }
+          }
+          return null;
+        });
+    inFlight.add(sent);
+    sent.whenComplete((v, e) -> inFlight.remove(sent));
+  }
+
+  /**
+   * stop the window timer, send whatever is still queued and wait (bounded) for the responses
+   */
+  void close(long timeoutMillis) {
+    windowFlush.cancel(false);
+    flush();
+    try {
+      CompletableFuture.allOf(inFlight.toArray(new CompletableFuture[0])).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (Exception e) {
+      LOGGER.warn("Timed out flushing batched limit checks", e);
+    }
+  }
+
+  private static class PendingCheck {
+    private final RateLimitProtos.LimitRequest limitRequest;
+    private final CompletableFuture<RateLimitProtos.LimitResponse> future = new CompletableFuture<>();
+
+    private PendingCheck(RateLimitProtos.LimitRequest limitRequest) {
+      this.limitRequest = limitRequest;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Per-group outcome of ApiClient.limitCheckEach, indexed in the order the groups were given.
+ * A group can be unchecked when a requireAll check short-circuited on a locally cached denial;
+ * unchecked groups count as not passed.
+ */
+public class LimitCheckResults {
+  private final List<String> groups;
+  private final RateLimitProtos.LimitResponse[] limitResponses;
+  private final BitSet passed = new BitSet();
+
+  LimitCheckResults(List<String> groups, RateLimitProtos.LimitResponse[] limitResponses) {
+    this.groups = groups;
+    this.limitResponses = limitResponses;
+    for (int i = 0; i < limitResponses.length; i++) {
+      if (limitResponses[i] != null && limitResponses[i].getPassed()) {
+        passed.set(i);
+      }
+    }
+  }
+
+  public boolean allPassed() {
+    return passed.cardinality() == groups.size();
+  }
+
+  public boolean isPassed(int index) {
+    return passed.get(index);
+  }
+
+  /**
+   * @return false for groups that weren't part of the check
+   */
+  public boolean isPassed(String group) {
+    final int index = groups.indexOf(group);
+    return index >= 0 && passed.get(index);
+  }
+
+  /**
+   * @return a copy, bit i set if groups.get(i) passed
+   */
+  public BitSet getPassed() {
+    return (BitSet) passed.clone();
+  }
+
+  public boolean isChecked(int index) {
+    return limitResponses[index] != null;
+  }
+
+  /**
+   * @return null if the group wasn't checked
+   */
+  public RateLimitProtos.LimitResponse getLimitResponse(int index) {
+    return limitResponses[index];
+  }
+
+  public List<String> getGroups() {
+    return groups;
+  }
+}
@@ -0,0 +1,54 @@
+package it.ratelim.client;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.ByteString;
+import it.ratelim.data.RateLimitProtos;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * LimitDefinitions by group, swapped in whole. Groups resolve to the definition with the longest matching ':' prefix,
+ * as policy groups do on the server: events:pageview:homepage uses events:pageview unless it has its own.
+ */
+class LimitDefinitionIndex {
+  private volatile Map<String, RateLimitProtos.LimitDefinition> definitions = ImmutableMap.of();
+
+  void setDefinitions(Collection<RateLimitProtos.LimitDefinition> limitDefinitions) {
+    final ImmutableMap.Builder<String, RateLimitProtos.LimitDefinition> byGroup = ImmutableMap.builder();
+    for (RateLimitProtos.LimitDefinition limitDefinition : limitDefinitions) {
+      byGroup.put(limitDefinition.getGroup(), limitDefinition);
+    }
+    definitions = byGroup.build();
+  }
+
+  /**
+   * @return what to count the group under for this partition. Partition keys are arbitrary bytes, so they're base64
+   * encoded rather than decoded as UTF-8, which would map every invalid sequence to the same replacement character
+   */
+  static String partitionedKey(String group, ByteString partitionKey) {
+    return partitionKey.isEmpty()
+        ? group
+        : group + '\u0000' + BaseEncoding.base64().encode(partitionKey.toByteArray());
+  }
+
+  /**
+   * @return null if no definition covers the group
+   */
+  RateLimitProtos.LimitDefinition find(String group) {
+    final Map<String, RateLimitProtos.LimitDefinition> current = definitions;
+    String candidate = group;
+    while (true) {
+      final RateLimitProtos.LimitDefinition limitDefinition = current.get(candidate);
+      if (limitDefinition != null) {
+        return limitDefinition;
+      }
+      final int separator = candidate.lastIndexOf(':');
+      if (separator < 0) {
+        return null;
+      }
+      candidate = candidate.substring(0, separator);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where ApiClient sends limit checks and returns. Without one set on the Builder they go to the ratelim.it service;
+ * RedisLimitEngine evaluates them against your own Redis instead. Failures follow the caller's OnFailure handling.
+ * ApiClient.close() closes the engine.
+ */
+public interface LimitEngine extends Closeable {
+
+  CompletableFuture<RateLimitProtos.LimitResponse> check(RateLimitProtos.LimitRequest limitRequest);
+
+  /**
+   * @param limitResponse a passed response from check
+   */
+  CompletableFuture<Void> limitReturn(RateLimitProtos.LimitResponse limitResponse);
+
+  /**
+   * called with the account's limit definitions each time ApiClient refreshes them
+   *
+   * @param limitDefinitions
+   */
+  default void setDefinitions(Collection<RateLimitProtos.LimitDefinition> limitDefinitions) {
+  }
+
+  @Override
+  default void close() throws IOException {
+  }
+}
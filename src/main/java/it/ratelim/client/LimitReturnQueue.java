@@ -0,0 +1,142 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Fire and forget limit returns. The first return into an empty queue arms a batchWindowMillis timer and
+ * everything queued by then goes out as one LimitResponses post (maxBatchSize at a time). Failed batches are
+ * retried with jittered exponential backoff up to maxAttempts, then dropped with a warning.
+ */
+class LimitReturnQueue {
+  private static final Logger LOGGER = LoggerFactory.getLogger(LimitReturnQueue.class);
+  private static final long MAX_BACKOFF_MILLIS = 10000;
+
+  private final ConcurrentLinkedQueue<RateLimitProtos.LimitResponse> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final ConcurrentLinkedQueue<CompletableFuture<?>> inFlight = new ConcurrentLinkedQueue<>();
+  private final long batchWindowMillis;
+  private final int maxBatchSize;
+  private final int maxAttempts;
+  private final long retryBaseMillis;
+  private final Function<RateLimitProtos.LimitResponses, CompletableFuture<Void>> sender;
+  private final ScheduledExecutorService scheduler;
+  private volatile boolean closed;
+
+  LimitReturnQueue(long batchWindowMillis, int maxBatchSize, int maxAttempts, long retryBaseMillis,
+                   Function<RateLimitProtos.LimitResponses, CompletableFuture<Void>> sender,
+                   ScheduledExecutorService scheduler) {
+    this.batchWindowMillis = batchWindowMillis;
+    this.maxBatchSize = maxBatchSize;
+    this.maxAttempts = maxAttempts;
+    this.retryBaseMillis = retryBaseMillis;
+    this.sender = sender;
+    this.scheduler = scheduler;
+  }
+
+  void add(RateLimitProtos.LimitResponse limitResponse) {
+    if (closed) {
+      send(singletonBatch(limitResponse), 1);
+      return;
+    }
+    pending.add(limitResponse);
+    final int count = pendingCount.incrementAndGet();
+    if (count == 1) {
+      scheduler.schedule(this::flush, batchWindowMillis, TimeUnit.MILLISECONDS);
+    } else if (count == maxBatchSize) {
+      scheduler.execute(this::flush);
+    }
+  }
+
+  int size() {
+    return pendingCount.get();
+  }
+
+  void flush() {
+    List<RateLimitProtos.LimitResponse> batch;
+    while (!(batch = drain()).isEmpty()) {
+      send(batch, 1);
+    }
+  }
+
+  private List<RateLimitProtos.LimitResponse> drain() {
+    final List<RateLimitProtos.LimitResponse> batch = new ArrayList<>(Math.max(0, Math.min(pendingCount.get(), maxBatchSize)));
+    RateLimitProtos.LimitResponse limitResponse;
+    while (batch.size() < maxBatchSize && (limitResponse = pending.poll()) != null) {
+      pendingCount.decrementAndGet();
+      batch.add(limitResponse);
+    }
+    return batch;
+  }
+
+  private void send(List<RateLimitProtos.LimitResponse> batch, int attempt) {
+    final CompletableFuture<Void> sent = sender.apply(RateLimitProtos.LimitResponses.newBuilder().addAllResponses(batch).build())
+        .handle((v, e) -> {
+          if (e != null) {
+            retry(batch, attempt, e);
+          }
+          return null;
+        });
+    inFlight.add(sent);
+    sent.whenComplete((v, e) -> inFlight.remove(sent));
+  }
+
+  private void retry(List<RateLimitProtos.LimitResponse> batch, int attempt, Throwable e) {
+    if (attempt >= maxAttempts) {
+      LOGGER.warn("Dropping " + batch.size() + " limit returns after " + attempt + " attempts", e);
+      return;
+    }
+    if (closed) {
+      send(batch, attempt + 1);
+      return;
+    }
+    final long backoff = Math.min(MAX_BACKOFF_MILLIS, retryBaseMillis << Math.min(attempt - 1, 20));
+    final long jittered = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    // hold a place in inFlight so close() waits for the retry too
+    final CompletableFuture<Void> waiting = new CompletableFuture<>();
+    inFlight.add(waiting);
+    scheduler.schedule(() -> {
+      send(batch, attempt + 1);
+      inFlight.remove(waiting);
+      waiting.complete(null);
+    }, jittered, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * send everything still queued, retrying without delay, and wait (bounded) until it's all acknowledged or dropped
+   */
+  void close(long timeoutMillis) {
+    closed = true;
+    flush();
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    try {
+      while (!inFlight.isEmpty()) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          LOGGER.warn("Timed out flushing limit returns, " + inFlight.size() + " batches outstanding");
+          return;
+        }
+        CompletableFuture.allOf(inFlight.toArray(new CompletableFuture[0])).get(remaining, TimeUnit.MILLISECONDS);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Exception flushing limit returns", e);
+    }
+  }
+
+  private static List<RateLimitProtos.LimitResponse> singletonBatch(RateLimitProtos.LimitResponse limitResponse) {
+    final List<RateLimitProtos.LimitResponse> batch = new ArrayList<>(1);
+    batch.add(limitResponse);
+    return batch;
+  }
+}
@@ -0,0 +1,126 @@
+package it.ratelim.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import it.ratelim.client.util.LimitPolicies;
+import it.ratelim.data.RateLimitProtos;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * In-process approximation of the service for OnFailure.LOCAL_APPROXIMATE. Each group gets a token bucket
+ * sized from its cached LimitDefinition (limit + burst), with the limit split evenly across nodeCount nodes.
+ * Groups resolve to definitions as in LimitDefinitionIndex. A check charges all of its groups or none of them;
+ * limit_combiner isn't interpreted, every group needs room as with the default.
+ */
+class LocalLimiter {
+  private static final int MAX_BUCKETS = 100000;
+  private static final int LOCK_STRIPES = 64;
+
+  private final int nodeCount;
+  private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+  private final Cache<String, Bucket> buckets = CacheBuilder.newBuilder()
+      .maximumSize(MAX_BUCKETS)
+      .expireAfterAccess(1, TimeUnit.HOURS)
+      .build();
+  private final LimitDefinitionIndex definitions = new LimitDefinitionIndex();
+
+  LocalLimiter(int nodeCount) {
+    this.nodeCount = Math.max(1, nodeCount);
+  }
+
+  void setDefinitions(Collection<RateLimitProtos.LimitDefinition> limitDefinitions) {
+    definitions.setDefinitions(limitDefinitions);
+  }
+
+  /**
+   * passes only if every group in the request has tokens, and only then charges them; groups without a definition
+   * always pass
+   */
+  RateLimitProtos.LimitResponse check(RateLimitProtos.LimitRequest limitRequest) {
+    final long now = DateTime.now().getMillis();
+    final int amount = limitRequest.getAcquireAmount();
+    final List<String> groups = new ArrayList<>();
+    final List<RateLimitProtos.LimitDefinition> checked = new ArrayList<>();
+    final List<String> bucketKeys = new ArrayList<>();
+    for (String group : limitRequest.getGroupsList()) {
+      final RateLimitProtos.LimitDefinition limitDefinition = definitions.find(group);
+      if (limitDefinition != null) {
+        groups.add(group);
+        checked.add(limitDefinition);
+        bucketKeys.add(LimitDefinitionIndex.partitionedKey(group, limitRequest.getPartitionKey()));
+      }
+    }
+
+    // bulkGet hands the stripes back in a fixed order, so two checks sharing buckets can't deadlock
+    final List<Lock> held = new ArrayList<>();
+    for (Lock lock : locks.bulkGet(bucketKeys)) {
+      lock.lock();
+      held.add(lock);
+    }
+    try {
+      final List<Bucket> charged = new ArrayList<>();
+      for (int i = 0; i < checked.size(); i++) {
+        final Bucket bucket = refilled(bucketKeys.get(i), checked.get(i), now);
+        if (bucket.tokens < amount) {
+          for (Bucket refund : charged) {
+            refund.tokens += amount;
+          }
+          final RateLimitProtos.LimitDefinition limitDefinition = checked.get(i);
+          return RateLimitProtos.LimitResponse.newBuilder()
+              .setPassed(false)
+              .setEnforcedGroup(groups.get(i))
+              .setPolicyGroup(limitDefinition.getGroup())
+              .setPolicyName(limitDefinition.getPolicyName())
+              .setPolicyLimit(limitDefinition.getLimit())
+              .setAmount(amount)
+              .build();
+        }
+        bucket.tokens -= amount;
+        charged.add(bucket);
+      }
+    } finally {
+      for (Lock lock : held) {
+        lock.unlock();
+      }
+    }
+    return RateLimitProtos.LimitResponse.newBuilder()
+        .setPassed(true)
+        .setAmount(amount)
+        .build();
+  }
+
+  /**
+   * call holding the bucket's lock
+   */
+  private Bucket refilled(String bucketKey, RateLimitProtos.LimitDefinition limitDefinition, long now) {
+    final double capacity = Math.max(1, (limitDefinition.getLimit() + limitDefinition.getBurst()) / (double) nodeCount);
+    final long periodMillis = LimitPolicies.periodMillis(limitDefinition.getPolicyName());
+    final double refillPerMilli = periodMillis == Long.MAX_VALUE ? 0 : limitDefinition.getLimit() / (double) nodeCount / periodMillis;
+    try {
+      final Bucket bucket = buckets.get(bucketKey, () -> new Bucket(capacity, now));
+      bucket.tokens = Math.min(capacity, bucket.tokens + (now - bucket.updatedAt) * refillPerMilli);
+      bucket.updatedAt = now;
+      return bucket;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Bucket {
+    private double tokens;
+    private long updatedAt;
+
+    private Bucket(double tokens, long updatedAt) {
+      this.tokens = tokens;
+      this.updatedAt = updatedAt;
+    }
+  }
+}
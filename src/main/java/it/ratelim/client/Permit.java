@@ -0,0 +1,52 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * The outcome of ApiClient.acquire. If it passed, closing it queues the limit return without blocking,
+ * so a returnable limit (semaphore) can be held with try-with-resources:
+ * <pre>
+ * try (Permit permit = apiClient.acquire("reports:concurrent")) {
+ *   if (permit.isPassed()) {
+ *     runReport();
+ *   }
+ * }
+ * </pre>
+ * Closing more than once returns once. Nothing is returned for a pass that didn't come from the service or a
+ * LimitEngine (an OnFailure fallback or the local approximation), since nothing was held for it.
+ */
+public class Permit implements AutoCloseable {
+  private final RateLimitProtos.LimitResponse limitResponse;
+  private final Consumer<RateLimitProtos.LimitResponse> onClose;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  Permit(RateLimitProtos.LimitResponse limitResponse, Consumer<RateLimitProtos.LimitResponse> onClose) {
+    this.limitResponse = limitResponse;
+    this.onClose = onClose;
+  }
+
+  public boolean isPassed() {
+    return limitResponse.getPassed();
+  }
+
+  public RateLimitProtos.LimitResponse getLimitResponse() {
+    return limitResponse;
+  }
+
+  @Override
+  public void close() {
+    if (isHeld() && closed.compareAndSet(false, true)) {
+      onClose.accept(limitResponse);
+    }
+  }
+
+  /**
+   * fallback passes are built with passed alone, real ones say what they hold
+   */
+  private boolean isHeld() {
+    return limitResponse.getPassed() && (limitResponse.hasExpiresAt() || limitResponse.hasEnforcedGroup());
+  }
+}
@@ -0,0 +1,91 @@
+package it.ratelim.client;
+
+import com.google.protobuf.CodedOutputStream;
+import it.ratelim.data.RateLimitProtos;
+import org.apache.http.entity.ByteArrayEntity;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A limit check of one group, built and encoded once by ApiClient.prepare. Checking a single token reuses the same
+ * request and http entity every time; other amounts only encode the acquire_amount varint in front of the
+ * pre-encoded groups field (acquire_amount is field 3 and groups field 4, so it always serializes first).
+ */
+public class PreparedLimitCheck {
+  private static final int ACQUIRE_AMOUNT_TAG = (RateLimitProtos.LimitRequest.ACQUIRE_AMOUNT_FIELD_NUMBER << 3);
+
+  private final ApiClient apiClient;
+  private final RateLimitProtos.LimitRequest limitRequest;
+  private final byte[] encodedGroups;
+  private final ByteArrayEntity body;
+
+  PreparedLimitCheck(ApiClient apiClient, String group) {
+    this.apiClient = apiClient;
+    this.limitRequest = RateLimitProtos.LimitRequest.newBuilder().addGroups(group).build();
+    this.encodedGroups = limitRequest.toByteArray();
+    this.body = new ByteArrayEntity(encodedGroups);
+  }
+
+  public boolean isPass() {
+    return apiClient.isPass(limitRequest, body);
+  }
+
+  public boolean isPass(int amount) {
+    if (amount == 1) {
+      return isPass();
+    }
+    return apiClient.isPass(withAmount(amount), new ByteArrayEntity(encode(amount)));
+  }
+
+  public RateLimitProtos.LimitResponse limitCheck() {
+    return limitCheck(RateLimitProtos.OnFailure.LOG_AND_PASS);
+  }
+
+  public RateLimitProtos.LimitResponse limitCheck(RateLimitProtos.OnFailure onFailure) {
+    return apiClient.limitCheck(limitRequest, body, onFailure);
+  }
+
+  public CompletableFuture<Boolean> isPassAsync() {
+    return limitCheckAsync(RateLimitProtos.OnFailure.LOG_AND_PASS).thenApply(RateLimitProtos.LimitResponse::getPassed);
+  }
+
+  public CompletableFuture<RateLimitProtos.LimitResponse> limitCheckAsync(RateLimitProtos.OnFailure onFailure) {
+    return apiClient.limitCheckAsync(limitRequest, body, onFailure);
+  }
+
+  public CompletableFuture<RateLimitProtos.LimitResponse> limitCheckAsync(int amount, RateLimitProtos.OnFailure onFailure) {
+    if (amount == 1) {
+      return limitCheckAsync(onFailure);
+    }
+    return apiClient.limitCheckAsync(withAmount(amount), new ByteArrayEntity(encode(amount)), onFailure);
+  }
+
+  public RateLimitProtos.LimitRequest getLimitRequest() {
+    return limitRequest;
+  }
+
+  /**
+   * the same bytes as getLimitRequest() with acquire_amount set to amount
+   */
+  byte[] encode(int amount) {
+    if (amount < 1) {
+      throw new IllegalArgumentException("amount must be positive, was " + amount);
+    }
+    final byte[] encoded = new byte[1 + CodedOutputStream.computeRawVarint32Size(amount) + encodedGroups.length];
+    final CodedOutputStream output = CodedOutputStream.newInstance(encoded);
+    try {
+      output.writeRawVarint32(ACQUIRE_AMOUNT_TAG);
+      output.writeRawVarint32(amount);
+      output.writeRawBytes(encodedGroups);
+    } catch (IOException e) {
+      // sized exactly, so the array can't run out of space
+      throw new IllegalStateException(e);
+    }
+    return encoded;
+  }
+
+  private RateLimitProtos.LimitRequest withAmount(int amount) {
+    return limitRequest.toBuilder().setAcquireAmount(amount).build();
+  }
+}
@@ -0,0 +1,254 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.joda.time.DateTime;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Passes items through unchanged, but only requests as many from upstream as the group has tokens for.
+ * Tokens are taken ahead of demand with acquire_amount, starting at one per check and doubling up to
+ * maxTokensPerCheck while checks pass. A denied check halves the amount and retries; when even a single token
+ * is denied nothing more is requested until limit_reset_at, so a throttled stream parks without polling.
+ * Supports a single subscriber. Every signal to it goes through one serialized drain, so items and the terminal
+ * signal never overlap even when a failed check and upstream race; the first terminal signal wins and anything
+ * after it is dropped. Items and a terminal signal that arrive before the subscriber are held for it.
+ */
+public class RateLimitedProcessor<T> implements Processor<T, T> {
+  private static final long UNKNOWN_RESET_WAIT_MILLIS = 1000;
+  private static final long MIN_WAIT_MILLIS = 10;
+  // the terminal signal for onComplete; anything else in terminal is an error
+  private static final Throwable COMPLETE = new Throwable("complete", null, false, false) {
+  };
+
+  private final String group;
+  private final int maxTokensPerCheck;
+  private final Function<RateLimitProtos.LimitRequest, CompletableFuture<RateLimitProtos.LimitResponse>> limitCheck;
+  private final ScheduledExecutorService scheduler;
+
+  private final AtomicLong downstreamDemand = new AtomicLong();
+  private final AtomicLong permits = new AtomicLong();
+  private final AtomicInteger wip = new AtomicInteger();
+  private final Queue<T> items = new ConcurrentLinkedQueue<>();
+  private final AtomicReference<Throwable> terminal = new AtomicReference<>();
+  private volatile Subscription upstream;
+  private volatile Subscriber<? super T> downstream;
+  // downstream once its onSubscribe has returned, so nothing reaches it before that
+  private volatile Subscriber<? super T> subscribed;
+  private volatile boolean cancelled;
+  private volatile boolean checking;
+  private volatile int tokensPerCheck = 1;
+  // only touched in drain
+  private boolean terminalDelivered;
+
+  RateLimitedProcessor(String group, int maxTokensPerCheck,
+                       Function<RateLimitProtos.LimitRequest, CompletableFuture<RateLimitProtos.LimitResponse>> limitCheck,
+                       ScheduledExecutorService scheduler) {
+    this.group = group;
+    this.maxTokensPerCheck = Math.max(1, maxTokensPerCheck);
+    this.limitCheck = limitCheck;
+    this.scheduler = scheduler;
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super T> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("subscriber");
+    }
+    synchronized (this) {
+      if (downstream != null) {
+        subscriber.onSubscribe(new Subscription() {
+          @Override
+          public void request(long n) {
+          }
+
+          @Override
+          public void cancel() {
+          }
+        });
+        subscriber.onError(new IllegalStateException("RateLimitedProcessor supports a single subscriber"));
+        return;
+      }
+      downstream = subscriber;
+    }
+    subscriber.onSubscribe(new DownstreamSubscription());
+    subscribed = subscriber;
+    drain();
+  }
+
+  @Override
+  public void onSubscribe(Subscription subscription) {
+    if (upstream != null || cancelled || terminal.get() != null) {
+      subscription.cancel();
+      return;
+    }
+    upstream = subscription;
+    drain();
+  }
+
+  @Override
+  public void onNext(T item) {
+    if (terminal.get() != null || cancelled) {
+      return;
+    }
+    items.offer(item);
+    drain();
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    if (throwable == null) {
+      throw new NullPointerException("throwable");
+    }
+    terminate(throwable);
+  }
+
+  @Override
+  public void onComplete() {
+    terminate(COMPLETE);
+  }
+
+  /**
+   * Passes items and the terminal signal to the subscriber, then hands granted tokens to upstream as requests, or
+   * starts a check when demand is waiting on tokens. Serialized by wip so it can be called from any thread.
+   */
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    do {
+      final Subscriber<? super T> subscriber = subscribed;
+      if (subscriber != null && !terminalDelivered) {
+        T item;
+        while (!cancelled && (item = items.poll()) != null) {
+          subscriber.onNext(item);
+        }
+        final Throwable done = terminal.get();
+        if (done != null && !cancelled && items.isEmpty()) {
+          terminalDelivered = true;
+          if (done == COMPLETE) {
+            subscriber.onComplete();
+          } else {
+            subscriber.onError(done);
+          }
+        }
+      }
+      final Subscription subscription = upstream;
+      if (!cancelled && terminal.get() == null && subscription != null) {
+        final long granted = Math.min(downstreamDemand.get(), permits.get());
+        if (granted > 0) {
+          downstreamDemand.addAndGet(-granted);
+          permits.addAndGet(-granted);
+          subscription.request(granted);
+        }
+        final long demand = downstreamDemand.get();
+        if (demand > 0 && permits.get() == 0 && !checking) {
+          checking = true;
+          check((int) Math.min(tokensPerCheck, demand));
+        }
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void check(int amount) {
+    final RateLimitProtos.LimitRequest limitRequest = RateLimitProtos.LimitRequest.newBuilder()
+        .addGroups(group)
+        .setAcquireAmount(amount)
+        .build();
+    limitCheck.apply(limitRequest).whenComplete((limitResponse, e) -> {
+      if (e != null) {
+        fail(e);
+        return;
+      }
+      if (limitResponse.getPassed()) {
+        tokensPerCheck = Math.min(maxTokensPerCheck, amount * 2);
+        permits.addAndGet(amount);
+        checking = false;
+        drain();
+      } else if (amount > 1) {
+        // maybe fewer than amount left before the reset, ask for less
+        tokensPerCheck = Math.max(1, amount / 2);
+        checking = false;
+        drain();
+      } else {
+        tokensPerCheck = 1;
+        scheduler.schedule(() -> {
+          checking = false;
+          drain();
+        }, waitMillis(limitResponse), TimeUnit.MILLISECONDS);
+      }
+    });
+  }
+
+  private static long waitMillis(RateLimitProtos.LimitResponse denial) {
+    if (denial.getLimitResetAt() <= 0) {
+      return UNKNOWN_RESET_WAIT_MILLIS;
+    }
+    return Math.max(MIN_WAIT_MILLIS, denial.getLimitResetAt() - DateTime.now().getMillis());
+  }
+
+  /**
+   * the first terminal signal wins; the subscriber gets it from drain
+   */
+  private void terminate(Throwable done) {
+    if (terminal.compareAndSet(null, done)) {
+      drain();
+    }
+  }
+
+  /**
+   * stops upstream and ends the stream with e, unless it already ended
+   */
+  private void fail(Throwable e) {
+    if (terminal.compareAndSet(null, e)) {
+      cancelUpstream();
+      drain();
+    }
+  }
+
+  private void cancel() {
+    cancelled = true;
+    items.clear();
+    cancelUpstream();
+  }
+
+  private void cancelUpstream() {
+    final Subscription subscription = upstream;
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+
+  private class DownstreamSubscription implements Subscription {
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        fail(new IllegalArgumentException("request must be positive, was " + n));
+        return;
+      }
+      long current;
+      do {
+        current = downstreamDemand.get();
+      } while (!downstreamDemand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      RateLimitedProcessor.this.cancel();
+    }
+  }
+}
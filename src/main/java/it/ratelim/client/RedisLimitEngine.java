@@ -0,0 +1,311 @@
+package it.ratelim.client;
+
+import com.lambdaworks.redis.RedisClient;
+import com.lambdaworks.redis.RedisCommandExecutionException;
+import com.lambdaworks.redis.ScriptOutputType;
+import com.lambdaworks.redis.api.StatefulRedisConnection;
+import com.lambdaworks.redis.api.async.RedisAsyncCommands;
+import it.ratelim.client.util.BinaryRedisCodec;
+import it.ratelim.client.util.LimitPolicies;
+import it.ratelim.client.util.Timeouts;
+import it.ratelim.data.RateLimitProtos;
+import org.joda.time.DateTime;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Evaluates limit checks against your own Redis, so a check costs one round trip to Redis instead of an http call.
+ * Each check runs as one Lua script, atomically across all of the request's groups: either every group has room for
+ * acquire_amount and all of them are charged, or nothing is.
+ * <ul>
+ * <li>rolling policies are token buckets holding limit + burst, refilled at limit per policy period</li>
+ * <li>INFINITE buckets never refill or expire</li>
+ * <li>returnable groups are semaphores: a sorted set of holders scored by when they lapse (one policy period
+ * after acquiring) unless returned first. The semaphores a check took are listed under its holder, so returning it
+ * releases every one of them</li>
+ * </ul>
+ * Groups resolve to definitions as in LimitDefinitionIndex; groups without a definition always pass. limit_combiner
+ * isn't interpreted, every group needs room as with the default. Until the first definitions are set every check
+ * fails, so callers get their OnFailure outcome rather than an unlimited pass.
+ * Time comes from the client clock, so keep the clocks of clients sharing a Redis in sync.
+ * A check with several groups touches several keys in one script, and a return touches the keys its holder lists,
+ * which Redis Cluster rejects (CROSSSLOT) unless they share a slot, so use a single Redis node (replicas are fine).
+ */
+public class RedisLimitEngine implements LimitEngine {
+  private static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+  private static final String KEY_PREFIX = "it.ratelim.limit.";
+  private static final String HOLD_PREFIX = "it.ratelim.hold.";
+  private static final String BUCKET = "b";
+  private static final String SEMAPHORE = "s";
+
+  /**
+   * KEYS: the limit keys, then the holder's key if any of them is a semaphore.
+   * ARGV: now, amount, holder, then per limit key: kind, capacity, refill per ms (buckets) or hold ms (semaphores),
+   * ttl ms. Returns {0, 0} when every key had room and was charged, otherwise {denied key index from 1, ms until
+   * there might be room or -1 if never}.
+   */
+  private static final String CHECK_SCRIPT =
+      "local now = tonumber(ARGV[1])\n" +
+      "local amount = tonumber(ARGV[2])\n" +
+      "local count = (#ARGV - 3) / 4\n" +
+      "local held = KEYS[count + 1]\n" +
+      "local heldTtl = 0\n" +
+      "local tokens = {}\n" +
+      "for i = 1, count do\n" +
+      "  local key = KEYS[i]\n" +
+      "  local base = 3 + (i - 1) * 4\n" +
+      "  local capacity = tonumber(ARGV[base + 2])\n" +
+      "  local rate = tonumber(ARGV[base + 3])\n" +
+      "  if ARGV[base + 1] == 'b' then\n" +
+      "    local state = redis.call('HMGET', key, 't', 'ts')\n" +
+      "    local available = tonumber(state[1]) or capacity\n" +
+      "    local last = tonumber(state[2]) or now\n" +
+      "    if rate > 0 and now > last then\n" +
+      "      available = math.min(capacity, available + (now - last) * rate)\n" +
+      "    end\n" +
+      "    if available < amount then\n" +
+      "      if rate > 0 and amount <= capacity then\n" +
+      "        return {i, math.ceil((amount - available) / rate)}\n" +
+      "      end\n" +
+      "      return {i, -1}\n" +
+      "    end\n" +
+      "    tokens[i] = available\n" +
+      "  else\n" +
+      "    if rate > 0 then\n" +
+      "      redis.call('ZREMRANGEBYSCORE', key, '-inf', now)\n" +
+      "    end\n" +
+      "    if redis.call('ZCARD', key) + amount > capacity then\n" +
+      "      local first = redis.call('ZRANGE', key, 0, 0, 'WITHSCORES')\n" +
+      "      if rate > 0 and amount <= capacity and first[2] then\n" +
+      "        return {i, math.max(0, tonumber(first[2]) - now)}\n" +
+      "      end\n" +
+      "      return {i, -1}\n" +
+      "    end\n" +
+      "  end\n" +
+      "end\n" +
+      "for i = 1, count do\n" +
+      "  local key = KEYS[i]\n" +
+      "  local base = 3 + (i - 1) * 4\n" +
+      "  local rate = tonumber(ARGV[base + 3])\n" +
+      "  if ARGV[base + 1] == 'b' then\n" +
+      "    redis.call('HMSET', key, 't', tostring(tokens[i] - amount), 'ts', tostring(now))\n" +
+      "  else\n" +
+      "    local expires = '+inf'\n" +
+      "    if rate > 0 then\n" +
+      "      expires = now + rate\n" +
+      "    end\n" +
+      "    for m = 1, amount do\n" +
+      "      redis.call('ZADD', key, expires, ARGV[3] .. ':' .. m)\n" +
+      "    end\n" +
+      "    redis.call('SADD', held, key)\n" +
+      "    if rate == 0 then\n" +
+      "      heldTtl = -1\n" +
+      "    elseif heldTtl >= 0 then\n" +
+      "      heldTtl = math.max(heldTtl, rate)\n" +
+      "    end\n" +
+      "  end\n" +
+      "  local ttl = tonumber(ARGV[base + 4])\n" +
+      "  if ttl > 0 then\n" +
+      "    redis.call('PEXPIRE', key, ttl)\n" +
+      "  end\n" +
+      "end\n" +
+      "if held and heldTtl > 0 then\n" +
+      "  redis.call('PEXPIRE', held, heldTtl)\n" +
+      "end\n" +
+      "return {0, 0}\n";
+
+  /**
+   * KEYS: the holder's key. ARGV: holder, amount. Returns how many holds were released.
+   */
+  private static final String RETURN_SCRIPT =
+      "local removed = 0\n" +
+      "for _, key in ipairs(redis.call('SMEMBERS', KEYS[1])) do\n" +
+      "  for m = 1, tonumber(ARGV[2]) do\n" +
+      "    removed = removed + redis.call('ZREM', key, ARGV[1] .. ':' .. m)\n" +
+      "  end\n" +
+      "end\n" +
+      "redis.call('DEL', KEYS[1])\n" +
+      "return removed\n";
+
+  private static final ShortCircuitException NOT_LOADED = new ShortCircuitException("Limit definitions not loaded yet");
+
+  private final StatefulRedisConnection<String, byte[]> connection;
+  private final RedisAsyncCommands<String, byte[]> redis;
+  private final long timeoutMillis;
+  private final LimitDefinitionIndex definitions = new LimitDefinitionIndex();
+  private final String checkDigest;
+  private final String returnDigest;
+  private volatile boolean definitionsLoaded;
+
+  public RedisLimitEngine(RedisClient redisClient) {
+    this(redisClient, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  public RedisLimitEngine(RedisClient redisClient, long timeoutMillis) {
+    this.connection = redisClient.connect(new BinaryRedisCodec());
+    this.redis = connection.async();
+    this.timeoutMillis = timeoutMillis;
+    this.checkDigest = redis.digest(bytes(CHECK_SCRIPT));
+    this.returnDigest = redis.digest(bytes(RETURN_SCRIPT));
+  }
+
+  @Override
+  public void setDefinitions(Collection<RateLimitProtos.LimitDefinition> limitDefinitions) {
+    definitions.setDefinitions(limitDefinitions);
+    definitionsLoaded = true;
+  }
+
+  @Override
+  public CompletableFuture<RateLimitProtos.LimitResponse> check(RateLimitProtos.LimitRequest limitRequest) {
+    if (!definitionsLoaded) {
+      final CompletableFuture<RateLimitProtos.LimitResponse> notLoaded = new CompletableFuture<>();
+      notLoaded.completeExceptionally(NOT_LOADED);
+      return notLoaded;
+    }
+    final long now = DateTime.now().getMillis();
+    final int amount = limitRequest.getAcquireAmount();
+    final String holder = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+
+    final List<RateLimitProtos.LimitDefinition> checked = new ArrayList<>();
+    final List<String> checkedGroups = new ArrayList<>();
+    final List<String> keys = new ArrayList<>();
+    final List<byte[]> args = new ArrayList<>();
+    args.add(bytes(Long.toString(now)));
+    args.add(bytes(Integer.toString(amount)));
+    args.add(bytes(holder));
+    for (String group : limitRequest.getGroupsList()) {
+      final RateLimitProtos.LimitDefinition limitDefinition = definitions.find(group);
+      if (limitDefinition == null) {
+        continue;
+      }
+      checked.add(limitDefinition);
+      checkedGroups.add(group);
+      keys.add(key(group, limitRequest));
+      final long periodMillis = LimitPolicies.periodMillis(limitDefinition.getPolicyName());
+      final long capacity = limitDefinition.getLimit() + limitDefinition.getBurst();
+      if (limitDefinition.getReturnable()) {
+        args.add(bytes(SEMAPHORE));
+        args.add(bytes(Long.toString(capacity)));
+        args.add(bytes(Long.toString(periodMillis == Long.MAX_VALUE ? 0 : periodMillis)));
+        args.add(bytes(Long.toString(periodMillis == Long.MAX_VALUE ? 0 : periodMillis * 2)));
+      } else if (periodMillis == Long.MAX_VALUE) {
+        args.add(bytes(BUCKET));
+        args.add(bytes(Long.toString(capacity)));
+        args.add(bytes("0"));
+        args.add(bytes("0"));
+      } else {
+        final double refillPerMilli = limitDefinition.getLimit() / (double) periodMillis;
+        args.add(bytes(BUCKET));
+        args.add(bytes(Long.toString(capacity)));
+        args.add(bytes(Double.toString(refillPerMilli)));
+        // long enough to refill completely, after which a missing key means the same thing
+        args.add(bytes(Long.toString((long) Math.ceil(capacity / refillPerMilli) + 1000)));
+      }
+    }
+    if (keys.isEmpty()) {
+      return CompletableFuture.completedFuture(RateLimitProtos.LimitResponse.newBuilder()
+          .setPassed(true)
+          .setAmount(amount)
+          .build());
+    }
+    for (RateLimitProtos.LimitDefinition limitDefinition : checked) {
+      if (limitDefinition.getReturnable()) {
+        keys.add(HOLD_PREFIX + holder);
+        break;
+      }
+    }
+
+    return this.<List<Object>>eval(CHECK_SCRIPT, checkDigest, ScriptOutputType.MULTI, keys, args).thenApply(result -> {
+      final int denied = ((Long) result.get(0)).intValue();
+      final long waitMillis = (Long) result.get(1);
+      final RateLimitProtos.LimitResponse.Builder limitResponse = RateLimitProtos.LimitResponse.newBuilder()
+          .setAmount(amount);
+      if (denied == 0) {
+        limitResponse.setPassed(true);
+        for (int i = 0; i < checked.size(); i++) {
+          if (checked.get(i).getReturnable()) {
+            // the holder is what limitReturn needs; it lists every semaphore taken
+            final long holdMillis = LimitPolicies.periodMillis(checked.get(i).getPolicyName());
+            limitResponse
+                .setEnforcedGroup(checkedGroups.get(i))
+                .setCurrentBucket(Long.parseLong(holder));
+            if (holdMillis != Long.MAX_VALUE) {
+              limitResponse.setExpiresAt(now + holdMillis);
+            }
+            break;
+          }
+        }
+        return limitResponse.build();
+      }
+      final RateLimitProtos.LimitDefinition limitDefinition = checked.get(denied - 1);
+      limitResponse
+          .setPassed(false)
+          .setEnforcedGroup(checkedGroups.get(denied - 1))
+          .setPolicyGroup(limitDefinition.getGroup())
+          .setPolicyName(limitDefinition.getPolicyName())
+          .setPolicyLimit(limitDefinition.getLimit())
+          .setSafetyLevel(limitDefinition.getSafetyLevel());
+      if (waitMillis >= 0) {
+        limitResponse.setLimitResetAt(now + waitMillis);
+      }
+      return limitResponse.build();
+    });
+  }
+
+  /**
+   * releases every returnable hold the check took; anything else is a no-op
+   */
+  @Override
+  public CompletableFuture<Void> limitReturn(RateLimitProtos.LimitResponse limitResponse) {
+    if (!limitResponse.getPassed() || !limitResponse.hasCurrentBucket() || limitResponse.getEnforcedGroup().isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    final List<String> keys = new ArrayList<>();
+    keys.add(HOLD_PREFIX + limitResponse.getCurrentBucket());
+    final List<byte[]> args = new ArrayList<>();
+    args.add(bytes(Long.toString(limitResponse.getCurrentBucket())));
+    args.add(bytes(Long.toString(limitResponse.getAmount())));
+    return this.<Long>eval(RETURN_SCRIPT, returnDigest, ScriptOutputType.INTEGER, keys, args).thenApply(removed -> null);
+  }
+
+  @Override
+  public void close() {
+    connection.close();
+  }
+
+  /**
+   * EVALSHA, falling back to EVAL (which also caches the script) the first time a server hasn't seen it
+   */
+  private <T> CompletableFuture<T> eval(String script, String digest, ScriptOutputType outputType,
+                                        List<String> keys, List<byte[]> args) {
+    final String[] keyArray = keys.toArray(new String[0]);
+    final byte[][] argArray = args.toArray(new byte[0][]);
+    final CompletableFuture<T> evalsha = redis.<T>evalsha(digest, outputType, keyArray, argArray).toCompletableFuture();
+    return Timeouts.within(evalsha.handle((result, e) -> {
+      if (e == null) {
+        return CompletableFuture.completedFuture(result);
+      }
+      final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+      if (cause instanceof RedisCommandExecutionException && String.valueOf(cause.getMessage()).startsWith("NOSCRIPT")) {
+        return redis.<T>eval(script, outputType, keyArray, argArray).toCompletableFuture();
+      }
+      final CompletableFuture<T> failed = new CompletableFuture<>();
+      failed.completeExceptionally(cause);
+      return failed;
+    }).thenCompose(future -> future), timeoutMillis, "redis limit script");
+  }
+
+  private static String key(String group, RateLimitProtos.LimitRequest limitRequest) {
+    return KEY_PREFIX + LimitDefinitionIndex.partitionedKey(group, limitRequest.getPartitionKey());
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,19 @@
+package it.ratelim.client;
+
+import java.io.IOException;
+
+/**
+ * A call skipped on purpose (open circuit breaker, limits not loaded yet) rather than one that failed. These can
+ * happen on every request, so one shared instance is thrown, without a stack trace, and handleError logs them at debug.
+ */
+class ShortCircuitException extends IOException {
+
+  ShortCircuitException(String message) {
+    super(message);
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
@@ -0,0 +1,62 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * The last good flags and limit definitions, kept on local disk so a restarted client can serve them before it
+ * has talked to anyone. Writes go to a temp file in the same directory which is fsynced and then renamed over
+ * the old one, so readers only ever see a complete snapshot. Snapshots are small, so reads take the whole file in
+ * one go rather than mapping it, which on Windows would block the next rename over it until the mapping was GCed.
+ */
+class SnapshotFile {
+  private final Path path;
+
+  SnapshotFile(Path path) {
+    this.path = path;
+  }
+
+  /**
+   * @return empty if there is no snapshot yet
+   * @throws IOException if the file can't be read or doesn't parse
+   */
+  Optional<RateLimitProtos.ClientSnapshot> read() throws IOException {
+    try {
+      return Optional.of(RateLimitProtos.ClientSnapshot.parseFrom(Files.readAllBytes(path)));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    }
+  }
+
+  void write(RateLimitProtos.ClientSnapshot clientSnapshot) throws IOException {
+    final Path directory = path.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    final Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        final ByteBuffer bytes = ByteBuffer.wrap(clientSnapshot.toByteArray());
+        while (bytes.hasRemaining()) {
+          channel.write(bytes);
+        }
+        channel.force(true);
+      }
+      try {
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.joda.time.DateTime;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Leases blocks of tokens for hot groups (using acquire_amount) and admits from a local counter until the block
+ * is spent or expires. The block size tracks the observed rate, so a node only holds about leaseTargetMillis
+ * worth of its own traffic and can't starve the other nodes sharing the limit.
+ */
+class TokenLeases {
+  private static final double REFILL_THRESHOLD = 0.25;
+
+  private final Set<String> leasedGroups;
+  private final long leaseTargetMillis;
+  private final int maxLeaseSize;
+  private final Function<RateLimitProtos.LimitRequest, CompletableFuture<RateLimitProtos.LimitResponse>> acquirer;
+  private final BiFunction<Exception, RateLimitProtos.LimitRequest, RateLimitProtos.LimitResponse> onError;
+  private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+  /**
+   * @param acquirer must complete exceptionally on failure, rather than applying an OnFailure, so a failed call is never mistaken for a grant
+   * @param onError  decides a single call when no lease can be had
+   */
+  TokenLeases(Set<String> leasedGroups, long leaseTargetMillis, int maxLeaseSize,
+              Function<RateLimitProtos.LimitRequest, CompletableFuture<RateLimitProtos.LimitResponse>> acquirer,
+              BiFunction<Exception, RateLimitProtos.LimitRequest, RateLimitProtos.LimitResponse> onError) {
+    this.leasedGroups = leasedGroups;
+    this.leaseTargetMillis = leaseTargetMillis;
+    this.maxLeaseSize = maxLeaseSize;
+    this.acquirer = acquirer;
+    this.onError = onError;
+  }
+
+  boolean isLeased(String group) {
+    return leasedGroups.contains(group);
+  }
+
+  boolean isPass(String group) {
+    final Lease lease = leases.computeIfAbsent(group, Lease::new);
+    long now = DateTime.now().getMillis();
+
+    if (lease.tryAcquire(now)) {
+      if (lease.needsRefill(now)) {
+        lease.refill();
+      }
+      return true;
+    }
+    if (now < lease.deniedUntil) {
+      return false;
+    }
+    // the lease is spent: wait for one refill
+    try {
+      lease.refill().join();
+    } catch (RuntimeException e) {
+      final Throwable cause = e.getCause() == null ? e : e.getCause();
+      return onError.apply(cause instanceof Exception ? (Exception) cause : e, lease.request(1)).getPassed();
+    }
+    now = DateTime.now().getMillis();
+    if (lease.tryAcquire(now)) {
+      return true;
+    }
+    // the group had fewer tokens left than the block asked for: deny this call rather than make it wait on more round
+    // trips, and let a background refill try the halved block
+    if (now >= lease.deniedUntil) {
+      lease.refill();
+    }
+    return false;
+  }
+
+  private class Lease {
+    private final String group;
+    private final AtomicLong remaining = new AtomicLong();
+    private final LongAdder admitted = new LongAdder();
+    private final AtomicReference<CompletableFuture<Void>> inFlight = new AtomicReference<>();
+    private volatile long expiresAt;
+    private volatile long deniedUntil;
+    private volatile long grantedAt;
+    private volatile int granted;
+    private volatile int maxNextLeaseSize = 1;
+
+    private Lease(String group) {
+      this.group = group;
+    }
+
+    private boolean tryAcquire(long now) {
+      if (now >= expiresAt) {
+        return false;
+      }
+      long current;
+      do {
+        current = remaining.get();
+        if (current <= 0) {
+          return false;
+        }
+      } while (!remaining.compareAndSet(current, current - 1));
+      admitted.increment();
+      return true;
+    }
+
+    private boolean needsRefill(long now) {
+      return remaining.get() <= granted * REFILL_THRESHOLD
+          || expiresAt - now <= leaseTargetMillis * REFILL_THRESHOLD;
+    }
+
+    private RateLimitProtos.LimitRequest request(int amount) {
+      return RateLimitProtos.LimitRequest.newBuilder()
+          .addGroups(group)
+          .setAcquireAmount(amount)
+          .build();
+    }
+
+    /**
+     * at most one acquisition per group is in flight; concurrent callers share it
+     */
+    private CompletableFuture<Void> refill() {
+      while (true) {
+        final CompletableFuture<Void> existing = inFlight.get();
+        if (existing != null) {
+          return existing;
+        }
+        final CompletableFuture<Void> mine = new CompletableFuture<>();
+        if (inFlight.compareAndSet(null, mine)) {
+          acquire(mine);
+          return mine;
+        }
+      }
+    }
+
+    private void acquire(CompletableFuture<Void> mine) {
+      final int amount = nextLeaseSize();
+      CompletableFuture<RateLimitProtos.LimitResponse> acquired;
+      try {
+        acquired = acquirer.apply(request(amount));
+      } catch (RuntimeException e) {
+        acquired = new CompletableFuture<>();
+        acquired.completeExceptionally(e);
+      }
+      acquired.whenComplete((limitResponse, e) -> {
+        if (e == null) {
+          onGrant(limitResponse, amount);
+        }
+        inFlight.set(null);
+        if (e == null) {
+          mine.complete(null);
+        } else {
+          mine.completeExceptionally(e);
+        }
+      });
+    }
+
+    private int nextLeaseSize() {
+      final long elapsed = Math.max(1, DateTime.now().getMillis() - grantedAt);
+      final double ratePerMilli = admitted.sumThenReset() / (double) elapsed;
+      final long target = (long) Math.ceil(ratePerMilli * leaseTargetMillis);
+      // slow start: at most double per lease so a short burst can't grab a huge block
+      return (int) Math.max(1, Math.min(Math.min(target, maxNextLeaseSize), maxLeaseSize));
+    }
+
+    private void onGrant(RateLimitProtos.LimitResponse limitResponse, int amount) {
+      final long now = DateTime.now().getMillis();
+      if (limitResponse.getPassed()) {
+        final long expiry = now + leaseTargetMillis;
+        if (now >= expiresAt) {
+          remaining.set(amount);
+        } else {
+          remaining.addAndGet(amount);
+        }
+        expiresAt = limitResponse.getLimitResetAt() > now ? Math.min(limitResponse.getLimitResetAt(), expiry) : expiry;
+        grantedAt = now;
+        granted = amount;
+        maxNextLeaseSize = amount * 2;
+      } else if (amount > 1) {
+        // fewer tokens left than we asked for, try a smaller block next time
+        maxNextLeaseSize = Math.max(1, amount / 2);
+      } else {
+        deniedUntil = limitResponse.getLimitResetAt() > now ? limitResponse.getLimitResetAt() : now + leaseTargetMillis;
+      }
+    }
+  }
+}
@@ -1,9 +1,83 @@
 package it.ratelim.client.util;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 
+/**
+ * The async methods default to wrapping the blocking ones, so existing implementations keep working.
+ * Implementations backed by async clients should override them.
+ */
 public interface Cache {
   byte[] get(String s) throws ExecutionException, InterruptedException;
 
   void set(String key, int expiryInSeconds, byte[] bytes);
+
+  /**
+   * @return completes with null on a miss
+   */
+  default CompletionStage<byte[]> getAsync(String key) {
+    final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    try {
+      result.complete(get(key));
+    } catch (ExecutionException e) {
+      result.completeExceptionally(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  default CompletionStage<Boolean> setAsync(String key, int expiryInSeconds, byte[] bytes) {
+    set(key, expiryInSeconds, bytes);
+    return CompletableFuture.completedFuture(true);
+  }
+
+  /**
+   * store only if the key is absent, eg SET NX or memcached add. The default is not atomic; override it to use as a lock
+   *
+   * @return true if this call stored the value
+   */
+  default CompletionStage<Boolean> addAsync(String key, int expiryInSeconds, byte[] bytes) {
+    return getAsync(key).thenCompose(existing -> existing != null
+        ? CompletableFuture.completedFuture(false)
+        : setAsync(key, expiryInSeconds, bytes));
+  }
+
+  /**
+   * run onChange whenever any client stores a new value for key, so in-process copies can be reloaded straight away
+   * instead of waiting out their expiry. It may run on the cache's I/O thread. The default never runs it
+   *
+   * @param key
+   * @param onChange
+   */
+  default void subscribe(String key, Runnable onChange) {
+  }
+
+  /**
+   * @return only the keys that were found
+   */
+  default CompletionStage<Map<String, byte[]>> getMultiAsync(Collection<String> keys) {
+    final Map<String, byte[]> found = new HashMap<>();
+    CompletableFuture<Void> all = CompletableFuture.completedFuture(null);
+    for (String key : keys) {
+      all = all.thenCombine(getAsync(key), (ignored, bytes) -> {
+        if (bytes != null) {
+          found.put(key, bytes);
+        }
+        return null;
+      });
+    }
+    return all.thenApply(ignored -> found);
+  }
+
+  /**
+   * release connections the cache opened itself. ApiClient.close calls this; the default does nothing
+   */
+  default void close() {
+  }
 }
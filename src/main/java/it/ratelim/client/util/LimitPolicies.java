@@ -0,0 +1,31 @@
+package it.ratelim.client.util;
+
+import it.ratelim.data.RateLimitProtos;
+
+import java.util.concurrent.TimeUnit;
+
+public class LimitPolicies {
+
+  /**
+   * @return the window a policy's limit applies to, Long.MAX_VALUE for INFINITE
+   */
+  public static long periodMillis(RateLimitProtos.LimitResponse.LimitPolicyNames policyName) {
+    switch (policyName) {
+      case SECONDLY_ROLLING:
+        return TimeUnit.SECONDS.toMillis(1);
+      case MINUTELY_ROLLING:
+        return TimeUnit.MINUTES.toMillis(1);
+      case HOURLY_ROLLING:
+        return TimeUnit.HOURS.toMillis(1);
+      case DAILY_ROLLING:
+        return TimeUnit.DAYS.toMillis(1);
+      case MONTHLY_ROLLING:
+        return TimeUnit.DAYS.toMillis(30);
+      case YEARLY_ROLLING:
+        return TimeUnit.DAYS.toMillis(365);
+      case INFINITE:
+        return Long.MAX_VALUE;
+    }
+    throw new IllegalArgumentException("Unknown policy " + policyName);
+  }
+}
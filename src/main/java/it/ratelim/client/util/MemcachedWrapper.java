@@ -1,21 +1,105 @@
 package it.ratelim.client.util;
 
 import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationFuture;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Completes the async methods from spymemcached's listener callbacks, so no thread waits on the cache;
+ * every call is bounded by timeoutMillis.
+ */
 public class MemcachedWrapper implements Cache {
+  private static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
   private final MemcachedClientIF memcachedClientIF;
+  private final long timeoutMillis;
 
   public MemcachedWrapper(MemcachedClientIF memcachedClientIF) {
+    this(memcachedClientIF, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  public MemcachedWrapper(MemcachedClientIF memcachedClientIF, long timeoutMillis) {
     this.memcachedClientIF = memcachedClientIF;
+    this.timeoutMillis = timeoutMillis;
   }
 
   @Override
-  public byte[] get(String s) {
-    return (byte[]) memcachedClientIF.get(s);
+  public byte[] get(String s) throws ExecutionException, InterruptedException {
+    return getAsync(s).toCompletableFuture().get();
   }
 
   @Override
   public void set(String key, int expiryInSeconds, byte[] bytes) {
     memcachedClientIF.set(key, expiryInSeconds, bytes);
   }
+
+  @Override
+  public CompletionStage<byte[]> getAsync(String key) {
+    final Future<Object> future = memcachedClientIF.asyncGet(key);
+    final CompletableFuture<Object> result = new CompletableFuture<>();
+    if (future instanceof GetFuture) {
+      ((GetFuture<Object>) future).addListener(done -> complete(result, done));
+    } else {
+      complete(result, future);
+    }
+    return Timeouts.within(result, timeoutMillis, "memcached get " + key).thenApply(value -> (byte[]) value);
+  }
+
+  @Override
+  public CompletionStage<Boolean> setAsync(String key, int expiryInSeconds, byte[] bytes) {
+    return storeOperation(memcachedClientIF.set(key, expiryInSeconds, bytes), "memcached set " + key);
+  }
+
+  @Override
+  public CompletionStage<Boolean> addAsync(String key, int expiryInSeconds, byte[] bytes) {
+    return storeOperation(memcachedClientIF.add(key, expiryInSeconds, bytes), "memcached add " + key);
+  }
+
+  private CompletionStage<Boolean> storeOperation(Future<Boolean> future, String operation) {
+    final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    if (future instanceof OperationFuture) {
+      ((OperationFuture<Boolean>) future).addListener(done -> complete(result, done));
+    } else {
+      complete(result, future);
+    }
+    return Timeouts.within(result, timeoutMillis, operation);
+  }
+
+  @Override
+  public CompletionStage<Map<String, byte[]>> getMultiAsync(Collection<String> keys) {
+    final BulkFuture<Map<String, Object>> future = memcachedClientIF.asyncGetBulk(keys);
+    final CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+    future.addListener(done -> complete(result, done));
+    return Timeouts.within(result, timeoutMillis, "memcached get bulk").thenApply(values -> {
+      final Map<String, byte[]> found = new HashMap<>();
+      values.forEach((key, value) -> found.put(key, (byte[]) value));
+      return found;
+    });
+  }
+
+  /**
+   * only called once the future is done (from a listener), or for a foreign future, where it blocks
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> void complete(CompletableFuture<T> result, Future<?> done) {
+    try {
+      result.complete((T) done.get());
+    } catch (ExecutionException e) {
+      result.completeExceptionally(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.completeExceptionally(e);
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+  }
 }
@@ -1,25 +1,151 @@
 package it.ratelim.client.util;
 
+import com.google.common.hash.Hashing;
 import com.lambdaworks.redis.RedisClient;
 import com.lambdaworks.redis.SetArgs;
+import com.lambdaworks.redis.api.StatefulRedisConnection;
 import com.lambdaworks.redis.api.async.RedisAsyncCommands;
+import com.lambdaworks.redis.pubsub.RedisPubSubAdapter;
+import com.lambdaworks.redis.pubsub.StatefulRedisPubSubConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 
+/**
+ * Commands share one pipelined lettuce connection; every call is bounded by timeoutMillis.
+ * Every set also publishes a hash of the new value on the key's change channel (key + ".changed"). The publish is
+ * pipelined right behind the SET on the same connection, so a subscriber that reads the key on notification sees the
+ * new value. Subscriptions share a second, pub/sub connection opened on first use; lettuce resubscribes on reconnect.
+ */
 public class RedisWrapper implements Cache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RedisWrapper.class);
+  private static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+  private static final String CHANGE_CHANNEL_SUFFIX = ".changed";
+
   final RedisAsyncCommands<String, byte[]> redis;
+  private final StatefulRedisConnection<String, byte[]> connection;
+  private final RedisClient redisClient;
+  private final long timeoutMillis;
+  private final Map<String, List<Runnable>> subscribers = new ConcurrentHashMap<>();
+  private StatefulRedisPubSubConnection<String, byte[]> pubSub;
+  private boolean closed;
 
   public RedisWrapper(RedisClient redisClient) {
-    redis = redisClient.connect(new BinaryRedisCodec()).async();
+    this(redisClient, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  public RedisWrapper(RedisClient redisClient, long timeoutMillis) {
+    this.redisClient = redisClient;
+    connection = redisClient.connect(new BinaryRedisCodec());
+    redis = connection.async();
+    this.timeoutMillis = timeoutMillis;
   }
 
   @Override
   public byte[] get(String s) throws ExecutionException, InterruptedException {
-    return redis.get(s).get();
+    return getAsync(s).toCompletableFuture().get();
   }
 
   @Override
   public void set(String key, int expiryInSeconds, byte[] bytes) {
     redis.set(key, bytes, SetArgs.Builder.ex(expiryInSeconds));
+    publishChange(key, bytes);
+  }
+
+  @Override
+  public CompletionStage<byte[]> getAsync(String key) {
+    return Timeouts.within(redis.get(key).toCompletableFuture(), timeoutMillis, "redis get " + key);
+  }
+
+  @Override
+  public CompletionStage<Boolean> setAsync(String key, int expiryInSeconds, byte[] bytes) {
+    final CompletionStage<Boolean> stored = Timeouts.within(redis.set(key, bytes, SetArgs.Builder.ex(expiryInSeconds)).toCompletableFuture(), timeoutMillis, "redis set " + key)
+        .thenApply("OK"::equals);
+    publishChange(key, bytes);
+    return stored;
+  }
+
+  @Override
+  public CompletionStage<Boolean> addAsync(String key, int expiryInSeconds, byte[] bytes) {
+    return Timeouts.within(redis.set(key, bytes, SetArgs.Builder.nx().ex(expiryInSeconds)).toCompletableFuture(), timeoutMillis, "redis set nx " + key)
+        .thenApply("OK"::equals);
+  }
+
+  @Override
+  public CompletionStage<Map<String, byte[]>> getMultiAsync(Collection<String> keys) {
+    final String[] keyArray = keys.toArray(new String[keys.size()]);
+    return Timeouts.within(redis.mget(keyArray).toCompletableFuture(), timeoutMillis, "redis mget")
+        .thenApply(values -> zip(keyArray, values));
+  }
+
+  @Override
+  public void subscribe(String key, Runnable onChange) {
+    final String channel = key + CHANGE_CHANNEL_SUFFIX;
+    subscribers.computeIfAbsent(channel, ignored -> new CopyOnWriteArrayList<>()).add(onChange);
+    pubSub().async().subscribe(channel).whenComplete((ignored, e) -> {
+      if (e != null) {
+        LOGGER.warn("Exception subscribing to " + channel, e);
+      }
+    });
+  }
+
+  private synchronized StatefulRedisPubSubConnection<String, byte[]> pubSub() {
+    if (closed) {
+      throw new IllegalStateException("RedisWrapper is closed");
+    }
+    if (pubSub == null) {
+      pubSub = redisClient.connectPubSub(new BinaryRedisCodec());
+      pubSub.addListener(new RedisPubSubAdapter<String, byte[]>() {
+        @Override
+        public void message(String channel, byte[] message) {
+          for (Runnable onChange : subscribers.getOrDefault(channel, Collections.emptyList())) {
+            try {
+              onChange.run();
+            } catch (RuntimeException e) {
+              LOGGER.warn("Exception handling a change on " + channel, e);
+            }
+          }
+        }
+      });
+    }
+    return pubSub;
+  }
+
+  /**
+   * closes the connections this opened; the RedisClient stays open for its owner to shut down
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (pubSub != null) {
+      pubSub.close();
+    }
+    connection.close();
+  }
+
+  /**
+   * the message is only a version; subscribers read the key itself
+   */
+  private void publishChange(String key, byte[] bytes) {
+    redis.publish(key + CHANGE_CHANNEL_SUFFIX, Hashing.murmur3_128().hashBytes(bytes).asBytes());
+  }
+
+  private static Map<String, byte[]> zip(String[] keys, List<byte[]> values) {
+    final Map<String, byte[]> found = new HashMap<>();
+    for (int i = 0; i < keys.length; i++) {
+      if (values.get(i) != null) {
+        found.put(keys[i], values.get(i));
+      }
+    }
+    return found;
   }
 }
@@ -0,0 +1,37 @@
+package it.ratelim.client.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class Timeouts {
+  private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("ratelimit-timeouts-%d").setDaemon(true).build());
+
+  /**
+   * @return a future that fails with a TimeoutException if the given one hasn't completed within timeoutMillis
+   */
+  public static <T> CompletableFuture<T> within(CompletableFuture<T> future, long timeoutMillis, String operation) {
+    if (timeoutMillis <= 0 || future.isDone()) {
+      return future;
+    }
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    final ScheduledFuture<?> timeout = TIMER.schedule(
+        () -> result.completeExceptionally(new TimeoutException(operation + " timed out after " + timeoutMillis + "ms")),
+        timeoutMillis, TimeUnit.MILLISECONDS);
+    future.whenComplete((value, e) -> {
+      timeout.cancel(false);
+      if (e == null) {
+        result.complete(value);
+      } else {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+}
@@ -1,14 +1,36 @@
 package it.ratelim.client;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.protobuf.ByteString;
+import it.ratelim.data.RateLimitProtos;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 
 public class ApiClientTest {
   private ApiClient apiClient;
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Before
   public void setup() throws IOException {
     net.spy.memcached.MemcachedClient memcachedClient = new net.spy.memcached.MemcachedClient(
@@ -27,4 +49,688 @@ public class ApiClientTest {
 
   }
 
+  @Test
+  public void isPassAsync() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> RateLimitProtos.LimitResponse.newBuilder().setPassed(false).build().toByteArray());
+         ApiClient client = server.clientBuilder().build()) {
+
+      final CompletableFuture<Boolean> first = client.isPassAsync("a");
+      final CompletableFuture<Boolean> second = client.isPassAsync("b");
+
+      assertThat(first.get()).isFalse();
+      assertThat(second.get()).isFalse();
+      assertThat(server.getRequestCount()).isEqualTo(2);
+    }
+  }
+
+  @Test
+  public void limitCheckAsyncFailureHandling() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          throw new IllegalStateException("boom");
+        });
+         ApiClient client = server.clientBuilder().build()) {
+      final RateLimitProtos.LimitRequest request = RateLimitProtos.LimitRequest.newBuilder().addGroups("a").build();
+
+      assertThat(client.limitCheckAsync(request, RateLimitProtos.OnFailure.LOG_AND_PASS).get().getPassed()).isTrue();
+      assertThat(client.limitCheckAsync(request, RateLimitProtos.OnFailure.LOG_AND_FAIL).get().getPassed()).isFalse();
+      try {
+        client.limitCheckAsync(request, RateLimitProtos.OnFailure.THROW).get();
+        throw new AssertionError("expected failure");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(RateLimitException.class);
+      }
+    }
+  }
+
+  @Test
+  public void batchedLimitChecks() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck/batch", bytes -> {
+          try {
+            final RateLimitProtos.LimitResponses.Builder responses = RateLimitProtos.LimitResponses.newBuilder();
+            for (RateLimitProtos.LimitRequest request : RateLimitProtos.LimitRequests.parseFrom(bytes).getRequestsList()) {
+              responses.addResponses(RateLimitProtos.LimitResponse.newBuilder()
+                  .setPassed(!request.getGroups(0).startsWith("deny"))
+                  .setEnforcedGroup(request.getGroups(0)));
+            }
+            return responses.build().toByteArray();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        });
+         ApiClient client = server.clientBuilder()
+             .setLimitCheckBatchWindowMillis(50)
+             .setLimitCheckMaxBatchSize(10)
+             .build()) {
+
+      List<CompletableFuture<Boolean>> checks = new ArrayList<>();
+      for (int i = 0; i < 30; i++) {
+        checks.add(client.isPassAsync((i % 2 == 0 ? "allow:" : "deny:") + i));
+      }
+      for (int i = 0; i < 30; i++) {
+        assertThat(checks.get(i).get()).isEqualTo(i % 2 == 0);
+      }
+      assertThat(client.isPass("deny:sync")).isFalse();
+      assertThat(server.getRequestCount()).isLessThan(10);
+    }
+  }
+
+  @Test
+  public void leasedGroupsAdmitLocally() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> RateLimitProtos.LimitResponse.newBuilder().setPassed(true).build().toByteArray());
+         ApiClient client = server.clientBuilder()
+             .addLeasedGroup("hot")
+             .setLeaseTargetMillis(60000)
+             .build()) {
+
+      for (int i = 0; i < 200; i++) {
+        assertThat(client.isPass("hot")).isTrue();
+      }
+      assertThat(server.getRequestCount()).isLessThan(40);
+    }
+  }
+
+  @Test
+  public void leasedGroupsShrinkThenStopWhenDenied() throws Exception {
+    AtomicInteger tokens = new AtomicInteger(10);
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          try {
+            final int amount = RateLimitProtos.LimitRequest.parseFrom(bytes).getAcquireAmount();
+            final boolean passed = tokens.get() >= amount;
+            if (passed) {
+              tokens.addAndGet(-amount);
+            }
+            return RateLimitProtos.LimitResponse.newBuilder()
+                .setPassed(passed)
+                .setLimitResetAt(System.currentTimeMillis() + 60000)
+                .build().toByteArray();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        });
+         ApiClient client = server.clientBuilder()
+             .addLeasedGroup("hot")
+             .setLeaseTargetMillis(60000)
+             .build()) {
+
+      int passed = 0;
+      for (int i = 0; i < 50; i++) {
+        if (client.isPass("hot")) {
+          passed++;
+        }
+      }
+      assertThat(passed).isEqualTo(10);
+      final long requests = server.getRequestCount();
+      assertThat(client.isPass("hot")).isFalse();
+      assertThat(server.getRequestCount()).isEqualTo(requests);
+    }
+  }
+
+  @Test
+  public void aFailedLeaseIsHandledOnce() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          throw new IllegalStateException("down");
+        });
+         ApiClient client = server.clientBuilder()
+             .addLeasedGroup("hot")
+             .setHeavyHitterCount(1)
+             .build()) {
+
+      assertThat(client.isPass("hot")).isTrue();
+
+      MetricRegistry metrics = client.getApiClientMetrics().getMetricRegistry();
+      assertThat(metrics.getMeters().get("it.ratelim.fallback.log_and_pass").getCount()).isEqualTo(1);
+      assertThat(metrics.getMeters().get("it.ratelim.fallback.throw").getCount()).isEqualTo(0);
+      assertThat(client.getHeavyHitters().getChecks()).containsExactly(entry("hot", 1L));
+      assertThat(client.getHeavyHitters().getCheckTotal()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void theAsyncClientStartsOnTheFirstAsyncCall() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> RateLimitProtos.LimitResponse.newBuilder().setPassed(true).build().toByteArray());
+         ApiClient client = server.clientBuilder().build()) {
+      MetricRegistry metrics = client.getApiClientMetrics().getMetricRegistry();
+
+      assertThat(client.isPass("sync")).isTrue();
+      assertThat(metrics.getGauges()).containsKey("it.ratelim.connections.sync.max");
+      assertThat(metrics.getGauges()).doesNotContainKey("it.ratelim.connections.async.max");
+
+      assertThat(client.limitCheckAsync(RateLimitProtos.LimitRequest.newBuilder().addGroups("async").build())
+          .get(5, TimeUnit.SECONDS).getPassed()).isTrue();
+      assertThat(metrics.getGauges()).containsKey("it.ratelim.connections.async.max");
+    }
+  }
+
+  @Test
+  public void flagsLoadOnceForAllFeatures() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("featureflags", bytes -> RateLimitProtos.FeatureFlags.newBuilder()
+            .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(1))
+            .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("off").setPct(0).addWhitelisted("vip"))
+            .build().toByteArray());
+         ApiClient client = server.clientBuilder().build()) {
+
+      assertThat(client.featureIsOn("on")).isTrue();
+      assertThat(client.featureIsOnFor("off", "someone")).isFalse();
+      assertThat(client.featureIsOnFor("off", "vip")).isTrue();
+      assertThat(client.featureIsOn("missing")).isFalse();
+      assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void aFailedFirstFlagLoadIsNotRetriedInline() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("featureflags", bytes -> {
+          throw new IllegalStateException("down");
+        });
+         ApiClient client = server.clientBuilder().build()) {
+
+      for (int i = 0; i < 10; i++) {
+        assertThat(client.featureIsOn("on")).isFalse();
+      }
+      assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void deniedGroupsAreCachedUntilReset() throws Exception {
+    final long resetAt = System.currentTimeMillis() + 60000;
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> RateLimitProtos.LimitResponse.newBuilder()
+            .setPassed(false)
+            .setEnforcedGroup("abuser")
+            .setLimitResetAt(resetAt)
+            .build().toByteArray());
+         ApiClient client = server.clientBuilder()
+             .setDenialCacheMaxSize(100)
+             .build()) {
+
+      for (int i = 0; i < 10; i++) {
+        assertThat(client.isPass("abuser")).isFalse();
+      }
+      assertThat(client.isPassAsync("abuser").get()).isFalse();
+      assertThat(server.getRequestCount()).isEqualTo(1);
+
+      assertThat(client.isPass("other")).isFalse();
+      assertThat(server.getRequestCount()).isEqualTo(2);
+    }
+  }
+
+  @Test
+  public void slowDistributedCacheFallsBackToApi() throws Exception {
+    InMemoryCache slowCache = new InMemoryCache() {
+      @Override
+      public CompletionStage<byte[]> getAsync(String key) {
+        return new CompletableFuture<>();
+      }
+    };
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("featureflags", bytes -> RateLimitProtos.FeatureFlags.newBuilder()
+            .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(1))
+            .build().toByteArray());
+         ApiClient client = server.clientBuilder()
+             .setDistributedCache(slowCache)
+             .setDistributedCacheTimeoutMillis(50)
+             .build()) {
+
+      assertThat(client.getAllFlags()).hasSize(1);
+      assertThat(slowCache.values).containsKey("it.ratelim.java.1.featureflags");
+    }
+  }
+
+  @Test
+  public void closingTheClientClosesTheDistributedCache() throws Exception {
+    InMemoryCache cache = new InMemoryCache();
+    try (StubRateLimitServer server = new StubRateLimitServer()) {
+      server.clientBuilder().setDistributedCache(cache).build().close();
+    }
+    assertThat(cache.closed).isTrue();
+  }
+
+  @Test
+  public void coldFlagCacheIsFilledByOneCaller() throws Exception {
+    InMemoryCache sharedCache = new InMemoryCache();
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("featureflags", bytes -> RateLimitProtos.FeatureFlags.newBuilder()
+            .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(1))
+            .build().toByteArray());
+         ApiClient node1 = server.clientBuilder().setDistributedCache(sharedCache).build();
+         ApiClient node2 = server.clientBuilder().setDistributedCache(sharedCache).build()) {
+
+      List<CompletableFuture<Boolean>> checks = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        final ApiClient node = i % 2 == 0 ? node1 : node2;
+        checks.add(CompletableFuture.supplyAsync(() -> node.featureIsOn("on")));
+      }
+      for (CompletableFuture<Boolean> check : checks) {
+        assertThat(check.get()).isTrue();
+      }
+      assertThat(server.getRequestCount()).isEqualTo(1);
+      assertThat(sharedCache.values).containsKey("it.ratelim.java.1.featureflags.lock");
+    }
+  }
+
+  @Test
+  public void flagChangesInTheSharedCacheReachOtherNodes() throws Exception {
+    InMemoryCache sharedCache = new InMemoryCache();
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("featureflags", bytes -> RateLimitProtos.FeatureFlags.newBuilder()
+            .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(1))
+            .build().toByteArray());
+         ApiClient node = server.clientBuilder()
+             .setDistributedCache(sharedCache)
+             .setFeatureFlagInProcessCacheSecs(3600)
+             .build()) {
+      assertThat(node.featureIsOn("on")).isTrue();
+
+      // another node refreshing the shared copy
+      sharedCache.set("it.ratelim.java.1.featureflags", 60, RateLimitProtos.FeatureFlags.newBuilder()
+          .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(0))
+          .setCacheExpiry(System.currentTimeMillis() + 60000)
+          .build().toByteArray());
+
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (node.featureIsOn("on") && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(node.featureIsOn("on")).isFalse();
+      assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void aSlowRefreshDoesntUndoAFlagChange() throws Exception {
+    final AtomicInteger reads = new AtomicInteger();
+    final AtomicReference<CompletableFuture<Void>> held = new AtomicReference<>();
+    InMemoryCache sharedCache = new InMemoryCache() {
+      @Override
+      public CompletionStage<byte[]> getAsync(String key) {
+        reads.incrementAndGet();
+        final byte[] bytes = get(key);
+        final CompletableFuture<Void> gate = held.get();
+        return gate == null ? CompletableFuture.completedFuture(bytes) : gate.thenApply(ignored -> bytes);
+      }
+    };
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("featureflags", bytes -> RateLimitProtos.FeatureFlags.newBuilder()
+            .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(1))
+            .build().toByteArray());
+         ApiClient node = server.clientBuilder()
+             .setDistributedCache(sharedCache)
+             .setDistributedCacheTimeoutMillis(60000)
+             .setFeatureFlagInProcessCacheSecs(1)
+             .build()) {
+      assertThat(node.featureIsOn("on")).isTrue();
+
+      // the next refresh reads the current flags, and is answered late
+      final CompletableFuture<Void> gate = new CompletableFuture<>();
+      held.set(gate);
+      final int readsBefore = reads.get();
+      long deadline = System.currentTimeMillis() + 5000;
+      while (reads.get() == readsBefore && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(reads.get()).isGreaterThan(readsBefore);
+      held.set(null);
+
+      // meanwhile another node changes them
+      sharedCache.set("it.ratelim.java.1.featureflags", 60, RateLimitProtos.FeatureFlags.newBuilder()
+          .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(0))
+          .setCacheExpiry(System.currentTimeMillis() + 3600000)
+          .build().toByteArray());
+      deadline = System.currentTimeMillis() + 5000;
+      while (node.featureIsOn("on") && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(node.featureIsOn("on")).isFalse();
+
+      // the refresh finishes in here
+      gate.complete(null);
+      assertThat(node.featureIsOn("on")).isFalse();
+    }
+  }
+
+  @Test
+  public void unchangedFlagsAreNotDownloadedAgain() throws Exception {
+    InMemoryCache sharedCache = new InMemoryCache();
+    RateLimitProtos.FeatureFlags.Builder featureFlags = RateLimitProtos.FeatureFlags.newBuilder();
+    for (int i = 0; i < 100; i++) {
+      featureFlags.addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("feature" + i).setPct(1));
+    }
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handleConditional("featureflags", "\"v1\"", featureFlags.build().toByteArray());
+         ApiClient client = server.clientBuilder().build();
+         ApiClient cached = server.clientBuilder().setDistributedCache(sharedCache).setCompactCacheEncoding(true).build();
+         ApiClient raw = server.clientBuilder().setDistributedCache(sharedCache).build()) {
+      assertThat(client.featureIsOn("feature1")).isTrue();
+      assertThat(client.getAllFlags()).hasSize(100);
+      assertThat(server.getNotModifiedCount()).isEqualTo(1);
+
+      assertThat(cached.featureIsOn("feature1")).isTrue();
+      byte[] stored = sharedCache.values.get("it.ratelim.java.1.featureflags");
+      assertThat(stored[0]).isEqualTo((byte) 0xff);
+      assertThat(stored.length).isLessThan(featureFlags.build().getSerializedSize());
+      assertThat(RateLimitProtos.FeatureFlags.parseFrom(CacheEncoding.decode(stored)).getEtag()).isEqualTo("\"v1\"");
+
+      // clients that didn't opt in read the compact value and write raw protobuf
+      assertThat(raw.featureIsOn("feature1")).isTrue();
+      sharedCache.values.clear();
+      assertThat(raw.getAllFlags()).hasSize(100);
+      assertThat(RateLimitProtos.FeatureFlags.parseFrom(sharedCache.values.get("it.ratelim.java.1.featureflags")).getFlagsCount())
+          .isEqualTo(100);
+    }
+  }
+
+  @Test
+  public void snapshotFileServesFlagsWhileApiIsDown() throws Exception {
+    Path path = temporaryFolder.getRoot().toPath().resolve("ratelimit.snapshot");
+    new SnapshotFile(path).write(RateLimitProtos.ClientSnapshot.newBuilder()
+        .setFeatureFlags(RateLimitProtos.FeatureFlags.newBuilder()
+            .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(1)))
+        .setWrittenAt(System.currentTimeMillis())
+        .build());
+    assertThat(new SnapshotFile(path).read().get().getFeatureFlags().getFlagsCount()).isEqualTo(1);
+
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("featureflags", bytes -> {
+          throw new IllegalStateException("down");
+        });
+         ApiClient client = server.clientBuilder()
+             .setSnapshotFile(path)
+             .build()) {
+
+      assertThat(client.featureIsOn("on")).isTrue();
+      assertThat(client.featureIsOn("missing")).isFalse();
+    }
+  }
+
+  @Test
+  public void requestsAndFallbacksAreMetered() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          throw new IllegalStateException("down");
+        });
+         ApiClient client = server.clientBuilder().build()) {
+
+      assertThat(client.isPass("anything")).isTrue();
+
+      MetricRegistry metrics = client.getApiClientMetrics().getMetricRegistry();
+      assertThat(metrics.getTimers().get("it.ratelim.endpoint.limitcheck.latency").getCount()).isEqualTo(1);
+      assertThat(metrics.getMeters().get("it.ratelim.endpoint.limitcheck.errors").getCount()).isEqualTo(1);
+      assertThat(metrics.getMeters().get("it.ratelim.fallback.log_and_pass").getCount()).isEqualTo(1);
+      assertThat(metrics.getCounters().get("it.ratelim.requests.inflight").getCount()).isEqualTo(0);
+      assertThat(metrics.getGauges()).containsKey("it.ratelim.connections.sync.leased");
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void responsesAreReleasedToThePool() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limits", bytes -> "ignored".getBytes())
+        .handle("limitreturn", bytes -> "ignored".getBytes());
+         ApiClient client = server.clientBuilder()
+             .setMaxConnections(1)
+             .setMaxConnectionsPerRoute(1)
+             .build()) {
+
+      for (int i = 0; i < 5; i++) {
+        client.limitCreate(RateLimitProtos.LimitDefinition.newBuilder().setGroup("g").setLimit(1).build());
+        client.limitUpsert(RateLimitProtos.LimitDefinition.newBuilder().setGroup("g").setLimit(2).build());
+        client.limitReturn(RateLimitProtos.LimitResponse.newBuilder().setEnforcedGroup("g").build());
+      }
+      assertThat(server.getRequestCount()).isEqualTo(15);
+      assertThat(client.getApiClientMetrics().getMetricRegistry().getGauges()
+          .get("it.ratelim.connections.sync.leased").getValue()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void permitsReturnInBatchesAndRetry() throws Exception {
+    List<RateLimitProtos.LimitResponses> received = new ArrayList<>();
+    AtomicInteger batchCalls = new AtomicInteger();
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> RateLimitProtos.LimitResponse.newBuilder()
+            .setPassed(true)
+            .setEnforcedGroup("semaphore")
+            .setExpiresAt(42)
+            .build().toByteArray())
+        .handle("limitreturn/batch", bytes -> {
+          if (batchCalls.incrementAndGet() == 1) {
+            throw new IllegalStateException("flaky");
+          }
+          try {
+            received.add(RateLimitProtos.LimitResponses.parseFrom(bytes));
+          } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+          }
+          return "ok".getBytes();
+        })) {
+      try (ApiClient client = server.clientBuilder()
+          .setLimitReturnBatchWindowMillis(1000)
+          .build()) {
+        for (int i = 0; i < 3; i++) {
+          try (Permit permit = client.acquire("semaphore")) {
+            assertThat(permit.isPassed()).isTrue();
+          }
+        }
+      }
+      assertThat(batchCalls.get()).isEqualTo(2);
+      assertThat(received).hasSize(1);
+      assertThat(received.get(0).getResponsesCount()).isEqualTo(3);
+      assertThat(received.get(0).getResponses(0).getExpiresAt()).isEqualTo(42);
+    }
+  }
+
+  @Test
+  public void fallbackPermitsReturnNothing() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          throw new IllegalStateException("down");
+        })) {
+      try (ApiClient client = server.clientBuilder().build()) {
+        try (Permit permit = client.acquire("semaphore")) {
+          assertThat(permit.isPassed()).isTrue();
+        }
+      }
+      // the failed check only
+      assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void severalGroupsInOneRoundTrip() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck/batch", bytes -> {
+          try {
+            RateLimitProtos.LimitResponses.Builder responses = RateLimitProtos.LimitResponses.newBuilder();
+            for (RateLimitProtos.LimitRequest limitRequest : RateLimitProtos.LimitRequests.parseFrom(bytes).getRequestsList()) {
+              boolean passed = !limitRequest.getGroups(0).startsWith("ip:");
+              responses.addResponses(RateLimitProtos.LimitResponse.newBuilder()
+                  .setPassed(passed)
+                  .setEnforcedGroup(limitRequest.getGroups(0))
+                  .setLimitResetAt(System.currentTimeMillis() + 60000));
+            }
+            return responses.build().toByteArray();
+          } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+          }
+        });
+         ApiClient client = server.clientBuilder()
+             .setDenialCacheMaxSize(100)
+             .build()) {
+
+      LimitCheckResults results = client.limitCheckEach(Arrays.asList("user:1", "ip:10.0.0.1", "tenant:7"));
+      assertThat(server.getRequestCount()).isEqualTo(1);
+      assertThat(results.isPassed("user:1")).isTrue();
+      assertThat(results.isPassed("ip:10.0.0.1")).isFalse();
+      assertThat(results.isPassed(2)).isTrue();
+      assertThat(results.allPassed()).isFalse();
+
+      // the ip denial is cached, so requireAll doesn't go to the service at all
+      assertThat(client.isPassAll("user:1", "ip:10.0.0.1", "tenant:7")).isFalse();
+      assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void limitEngineReplacesTheService() throws Exception {
+    final List<RateLimitProtos.LimitDefinition> definitions = new ArrayList<>();
+    final List<RateLimitProtos.LimitResponse> returned = new ArrayList<>();
+    final LimitEngine engine = new LimitEngine() {
+      @Override
+      public CompletableFuture<RateLimitProtos.LimitResponse> check(RateLimitProtos.LimitRequest limitRequest) {
+        return CompletableFuture.completedFuture(RateLimitProtos.LimitResponse.newBuilder()
+            .setPassed(!limitRequest.getGroups(0).startsWith("ip:"))
+            .setEnforcedGroup(limitRequest.getGroups(0))
+            .build());
+      }
+
+      @Override
+      public CompletableFuture<Void> limitReturn(RateLimitProtos.LimitResponse limitResponse) {
+        synchronized (returned) {
+          returned.add(limitResponse);
+        }
+        return CompletableFuture.completedFuture(null);
+      }
+
+      @Override
+      public void setDefinitions(Collection<RateLimitProtos.LimitDefinition> limitDefinitions) {
+        synchronized (definitions) {
+          definitions.addAll(limitDefinitions);
+          definitions.notifyAll();
+        }
+      }
+    };
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limits", bytes -> RateLimitProtos.LimitDefinitions.newBuilder()
+            .addDefinitions(RateLimitProtos.LimitDefinition.newBuilder().setGroup("user").setLimit(10).setPolicyName(RateLimitProtos.LimitResponse.LimitPolicyNames.MINUTELY_ROLLING))
+            .build().toByteArray());
+         ApiClient client = server.clientBuilder()
+             .setLimitEngine(engine)
+             .build()) {
+      final long deadline = System.currentTimeMillis() + 5000;
+      synchronized (definitions) {
+        while (definitions.isEmpty() && System.currentTimeMillis() < deadline) {
+          definitions.wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        assertThat(definitions).isNotEmpty();
+      }
+      final long definitionRequests = server.getRequestCount();
+
+      assertThat(client.isPass("user:1")).isTrue();
+      assertThat(client.isPassAsync("ip:1").get()).isFalse();
+      assertThat(client.limitCheckEach(Arrays.asList("user:1", "ip:1")).getPassed().cardinality()).isEqualTo(1);
+      try (Permit permit = client.acquire("user:1")) {
+        assertThat(permit.isPassed()).isTrue();
+      }
+      client.limitReturn(RateLimitProtos.LimitResponse.newBuilder().setPassed(true).build());
+
+      assertThat(definitions.get(0).getGroup()).isEqualTo("user");
+      assertThat(server.getRequestCount()).isEqualTo(definitionRequests);
+    }
+    assertThat(returned).hasSize(2);
+  }
+
+  @Test
+  public void limitChecksAvoidSlowAndUnreachableEndpoints() throws Exception {
+    final byte[] denied = RateLimitProtos.LimitResponse.newBuilder().setPassed(false).build().toByteArray();
+    final StubRateLimitServer unreachable = new StubRateLimitServer();
+    final int unreachablePort = unreachable.getPort();
+    unreachable.close();
+    try (StubRateLimitServer slow = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return denied;
+        });
+         StubRateLimitServer fast = new StubRateLimitServer()
+             .handle("limitcheck", bytes -> denied)) {
+
+      try (ApiClient client = new ApiClient.Builder()
+          .setApikey("1|test")
+          .addEndpoint("127.0.0.1", unreachablePort)
+          .addEndpoint("127.0.0.1", fast.getPort())
+          .build()) {
+        for (int i = 0; i < 10; i++) {
+          // denied means the service answered, the LOG_AND_PASS fallback would pass
+          assertThat(client.isPass("anything")).isFalse();
+          assertThat(client.isPassAsync("anything").get()).isFalse();
+        }
+        MetricRegistry metrics = client.getApiClientMetrics().getMetricRegistry();
+        assertThat(metrics.getMeters().get("it.ratelim.fallback.log_and_pass").getCount()).isEqualTo(0);
+        assertThat((Double) metrics.getGauges().get("it.ratelim.host.127_0_0_1_" + unreachablePort + ".error.rate").getValue())
+            .isGreaterThan(0);
+      }
+      assertThat(fast.getRequestCount()).isEqualTo(20);
+
+      try (ApiClient client = new ApiClient.Builder()
+          .setApikey("1|test")
+          .addEndpoint("127.0.0.1", slow.getPort())
+          .addEndpoint("127.0.0.1", fast.getPort())
+          .build()) {
+        for (int i = 0; i < 20; i++) {
+          assertThat(client.isPass("anything")).isFalse();
+          assertThat(client.isPassAsync("anything").get()).isFalse();
+        }
+      }
+      assertThat(slow.getRequestCount()).isLessThan(10);
+    }
+  }
+
+  @Test
+  public void heavyHittersCountChecksDenialsAndFlagLookups() throws Exception {
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          try {
+            final boolean abuser = RateLimitProtos.LimitRequest.parseFrom(bytes).getGroups(0).equals("api:abuser");
+            return RateLimitProtos.LimitResponse.newBuilder().setPassed(!abuser).build().toByteArray();
+          } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+          }
+        })
+        .handle("featureflags", bytes -> RateLimitProtos.FeatureFlags.newBuilder()
+            .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(1))
+            .build().toByteArray());
+         ApiClient client = server.clientBuilder()
+             .setHeavyHitterCount(2)
+             .build()) {
+
+      for (int i = 0; i < 5; i++) {
+        assertThat(client.isPass("api:abuser")).isFalse();
+        assertThat(client.featureIsOn("on")).isTrue();
+      }
+      assertThat(client.isPassAsync("api:abuser").get()).isFalse();
+      assertThat(client.isPass("api:user1")).isTrue();
+      assertThat(client.isPass("api:user2")).isTrue();
+      assertThat(client.isPass("api:user2")).isTrue();
+      for (int i = 0; i < 3; i++) {
+        assertThat(client.limitCheck(RateLimitProtos.LimitRequest.newBuilder()
+            .addGroups("api:user3")
+            .setPartitionKey(ByteString.copyFromUtf8("tenant"))
+            .build()).getPassed()).isTrue();
+      }
+
+      final HeavyHitters heavyHitters = client.getHeavyHitters();
+      assertThat(heavyHitters.getChecks()).containsExactly(entry("api:abuser", 6L), entry("api:user3", 3L));
+      assertThat(heavyHitters.getCheckTotal()).isEqualTo(12);
+      assertThat(heavyHitters.getPartitionChecks()).containsExactly(entry("api:user3\u0000dGVuYW50", 3L));
+      assertThat(heavyHitters.getDenials()).containsExactly(entry("api:abuser", 6L));
+      assertThat(heavyHitters.getFlagLookups()).containsExactly(entry("on", 5L));
+      assertThat(client.getApiClientMetrics().getMetricRegistry().getGauges().get("it.ratelim.heavy.hitters.denials").getValue())
+          .isEqualTo(heavyHitters.getDenials());
+      assertThat(client.getApiClientMetrics().getMetricRegistry().getGauges().get("it.ratelim.heavy.hitters.partition.checks").getValue())
+          .isEqualTo(heavyHitters.getPartitionChecks());
+    }
+  }
 }
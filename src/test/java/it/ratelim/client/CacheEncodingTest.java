@@ -0,0 +1,33 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CacheEncodingTest {
+
+  @Test
+  public void readsItsOwnEncodingsAndRawValues() throws Exception {
+    final RateLimitProtos.FeatureFlags small = RateLimitProtos.FeatureFlags.newBuilder()
+        .addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("on").setPct(1))
+        .setCacheExpiry(1234)
+        .build();
+    final RateLimitProtos.FeatureFlags.Builder large = RateLimitProtos.FeatureFlags.newBuilder();
+    for (int i = 0; i < 200; i++) {
+      large.addFlags(RateLimitProtos.FeatureFlag.newBuilder().setAccountId(1).setFeature("feature" + i).addWhitelisted("user:" + i));
+    }
+
+    final byte[] smallEncoded = CacheEncoding.encode(small);
+    assertThat(smallEncoded[3]).isEqualTo(CacheEncoding.RAW);
+    assertThat(RateLimitProtos.FeatureFlags.parseFrom(CacheEncoding.decode(smallEncoded))).isEqualTo(small);
+
+    final byte[] largeEncoded = CacheEncoding.encode(large.build());
+    assertThat(largeEncoded[3]).isEqualTo(CacheEncoding.GZIP);
+    assertThat(largeEncoded.length).isLessThan(large.build().getSerializedSize() / 2);
+    assertThat(RateLimitProtos.FeatureFlags.parseFrom(CacheEncoding.decode(largeEncoded))).isEqualTo(large.build());
+
+    // written by clients from before the header
+    assertThat(RateLimitProtos.FeatureFlags.parseFrom(CacheEncoding.decode(small.toByteArray()))).isEqualTo(small);
+  }
+}
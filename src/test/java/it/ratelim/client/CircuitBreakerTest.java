@@ -0,0 +1,75 @@
+package it.ratelim.client;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void opensOnErrorRateAndClosesAfterProbe() throws Exception {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(.5, 10, 4, 50);
+    circuitBreaker.recordSuccess(System.nanoTime(), 1);
+    circuitBreaker.recordSuccess(System.nanoTime(), 1);
+    circuitBreaker.recordFailure(System.nanoTime());
+    assertThat(circuitBreaker.allowRequest()).isTrue();
+
+    final long startedBeforeOpening = System.nanoTime();
+    circuitBreaker.recordFailure(System.nanoTime());
+    assertThat(circuitBreaker.isOpen()).isTrue();
+    assertThat(circuitBreaker.allowRequest()).isFalse();
+
+    Thread.sleep(60);
+    assertThat(circuitBreaker.allowRequest()).isTrue();
+    final long probeStart = System.nanoTime();
+    assertThat(circuitBreaker.allowRequest()).isFalse();
+
+    // a call from before the breaker opened finishing late doesn't decide anything
+    circuitBreaker.recordSuccess(startedBeforeOpening, 1);
+    assertThat(circuitBreaker.isOpen()).isTrue();
+
+    circuitBreaker.recordSuccess(probeStart, 1);
+    assertThat(circuitBreaker.isOpen()).isFalse();
+    assertThat(circuitBreaker.allowRequest()).isTrue();
+  }
+
+  @Test
+  public void slowCallsCountAsFailing() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(.5, 10, 4, 50, 100);
+    for (int i = 0; i < 4; i++) {
+      circuitBreaker.recordSuccess(System.nanoTime(), 99);
+    }
+    assertThat(circuitBreaker.isOpen()).isFalse();
+    for (int i = 0; i < 4; i++) {
+      circuitBreaker.recordSuccess(System.nanoTime(), 250);
+    }
+    assertThat(circuitBreaker.isOpen()).isTrue();
+  }
+
+  @Test
+  public void aProbeThatNeverFinishesIsReplaced() throws Exception {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(.5, 10, 1, 50);
+    circuitBreaker.recordFailure(System.nanoTime());
+    assertThat(circuitBreaker.isOpen()).isTrue();
+
+    Thread.sleep(60);
+    assertThat(circuitBreaker.allowRequest()).isTrue();
+    assertThat(circuitBreaker.allowRequest()).isFalse();
+
+    Thread.sleep(60);
+    assertThat(circuitBreaker.allowRequest()).isTrue();
+    circuitBreaker.recordSuccess(System.nanoTime(), 1);
+    assertThat(circuitBreaker.isOpen()).isFalse();
+  }
+
+  @Test
+  public void percentiles() {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(0, 100, 20, 0);
+    for (int i = 1; i <= 100; i++) {
+      circuitBreaker.recordSuccess(System.nanoTime(), i);
+      circuitBreaker.recordFailure(System.nanoTime());
+    }
+    assertThat(circuitBreaker.isOpen()).isFalse();
+    assertThat(circuitBreaker.percentileMillis(.9)).isBetween(90L, 100L);
+  }
+}
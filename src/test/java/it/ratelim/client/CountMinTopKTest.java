@@ -0,0 +1,71 @@
+package it.ratelim.client;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CountMinTopKTest {
+
+  @Test
+  public void findsTheHeaviestKeysAmongAMillionOthers() throws Exception {
+    // a third of all keys are hot, hot0 10 times as often as hot9 (0.6%)
+    final List<String> hotKeys = new ArrayList<>();
+    for (int hot = 0; hot < 10; hot++) {
+      for (int i = hot; i < 10; i++) {
+        hotKeys.add("hot" + hot);
+      }
+    }
+    final int threads = 4;
+    final int tailPerThread = 250000;
+    final Map<String, Long> actual = new HashMap<>();
+    for (int i = 0; i < tailPerThread; i += 2) {
+      actual.merge(hotKeys.get(i / 2 % hotKeys.size()), (long) threads, Long::sum);
+    }
+
+    final CountMinTopK sketch = new CountMinTopK(10);
+    final List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      writers.add(new Thread(() -> {
+        for (int i = 0; i < tailPerThread; i++) {
+          sketch.add("tail:" + thread + ":" + i);
+          if (i % 2 == 0) {
+            sketch.add(hotKeys.get(i / 2 % hotKeys.size()));
+          }
+        }
+      }));
+    }
+    writers.forEach(Thread::start);
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    final Map<String, Long> top = sketch.top();
+    assertThat(top.keySet()).containsExactly("hot0", "hot1", "hot2", "hot3", "hot4", "hot5", "hot6", "hot7", "hot8", "hot9");
+    final long total = sketch.getTotal();
+    assertThat(total).isEqualTo(threads * (tailPerThread + tailPerThread / 2));
+    for (Map.Entry<String, Long> hot : actual.entrySet()) {
+      assertThat(top.get(hot.getKey())).isBetween(hot.getValue(), hot.getValue() + total / 100);
+    }
+  }
+
+  @Test
+  public void decayHalvesCounts() {
+    final CountMinTopK sketch = new CountMinTopK(2);
+    for (int i = 0; i < 100; i++) {
+      sketch.add("a");
+    }
+    sketch.add("b");
+
+    sketch.decay();
+
+    assertThat(sketch.estimate("a")).isEqualTo(50);
+    assertThat(sketch.getTotal()).isEqualTo(50);
+    assertThat(sketch.top()).containsOnlyKeys("a", "b");
+  }
+}
@@ -4,7 +4,9 @@ import com.google.common.collect.Lists;
 import it.ratelim.data.RateLimitProtos;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -61,4 +63,76 @@ public class FeatureFlagProcessorTest {
     assertThat(ffw.isOnFor(Optional.empty(), Lists.newArrayList())).isFalse();
 
   }
+
+  @Test
+  public void compiledBucketingMatchesWrapper() {
+    final RateLimitProtos.FeatureFlag feat = RateLimitProtos.FeatureFlag.newBuilder()
+        .setAccountId(1)
+        .setFeature("aa")
+        .setPct(.5)
+        .build();
+    CompiledFeatureFlag compiled = new CompiledFeatureFlag(feat);
+    FeatureFlagWrapper ffw = new FeatureFlagWrapper(feat);
+    assertThat(compiled.getUserPct("a1")).isEqualTo(0.2726196128747517);
+
+    Random random = new Random(42);
+    String[] alphabet = {"a", "Z", "7", ":", "\u00e9", "\u00df", "\u20ac", "\u4e2d", "\uD83D\uDE00", "\uD83D"};
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder key = new StringBuilder();
+      for (int j = random.nextInt(12); j > 0; j--) {
+        key.append(alphabet[random.nextInt(alphabet.length)]);
+      }
+      for (String feature : new String[]{"f", "fe", "fea", "feat"}) {
+        final RateLimitProtos.FeatureFlag flag = feat.toBuilder().setFeature(feature).build();
+        assertThat(new CompiledFeatureFlag(flag).getUserPct(key.toString()))
+            .as(feature + key)
+            .isEqualTo(ffw.getUserPct("1" + feature + key));
+      }
+    }
+  }
+
+  @Test
+  public void compiledDoesNotModifyAttributes() {
+    final RateLimitProtos.FeatureFlag feat = RateLimitProtos.FeatureFlag.newBuilder()
+        .setAccountId(1)
+        .setFeature("feat")
+        .addWhitelisted("team:3")
+        .build();
+    List<String> attributes = Lists.newArrayList("user:XXX", "team:3");
+    assertThat(new CompiledFeatureFlag(feat).isOnFor("XXX", attributes)).isTrue();
+    assertThat(attributes).containsExactly("user:XXX", "team:3");
+  }
+
+  @Test
+  public void evaluateAllMatchesEachFlag() {
+    final RateLimitProtos.FeatureFlags.Builder featureFlags = RateLimitProtos.FeatureFlags.newBuilder();
+    for (int i = 0; i < 40; i++) {
+      final RateLimitProtos.FeatureFlag.Builder flag = RateLimitProtos.FeatureFlag.newBuilder()
+          .setAccountId(111111)
+          .setFeature("feature" + i)
+          .setPct(i / 40.0);
+      if (i % 7 == 0) {
+        flag.addWhitelisted("team:3");
+      }
+      if (i % 11 == 0) {
+        flag.addWhitelisted("user:9");
+      }
+      featureFlags.addFlags(flag);
+    }
+    final FeatureFlagSnapshot snapshot = new FeatureFlagSnapshot(featureFlags.build());
+    final List<String> attributes = Lists.newArrayList("team:3", "team:4");
+
+    for (String lookupKey : new String[]{"user:1", "user:9", "user:\u00e9t\u00e9", "1123123ddddd123123"}) {
+      final FeatureFlagResults results = snapshot.evaluateAll(lookupKey, attributes);
+      for (int i = 0; i < 40; i++) {
+        final String feature = "feature" + i;
+        assertThat(results.isOn(feature))
+            .as(lookupKey + " " + feature)
+            .isEqualTo(snapshot.get(feature).isOnFor(lookupKey, attributes));
+        assertThat(results.isOn(results.getOrdinal(feature))).isEqualTo(results.isOn(feature));
+      }
+    }
+    assertThat(snapshot.evaluateAll("user:1", attributes).isOn("missing")).isFalse();
+    assertThat(attributes).containsExactly("team:3", "team:4");
+  }
 }
@@ -0,0 +1,59 @@
+package it.ratelim.client;
+
+import com.google.common.collect.Lists;
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import java.net.ConnectException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HostBalancerTest {
+  private static final HttpHost FIRST = new HttpHost("first", 80);
+  private static final HttpHost SECOND = new HttpHost("second", 80);
+
+  @Test
+  public void anOpenBreakerOnlySkipsItsOwnHost() {
+    final HostBalancer hostBalancer = new HostBalancer(Lists.newArrayList(FIRST, SECOND), 0,
+        () -> new CircuitBreaker(.5, 10, 2, 60000));
+    final HostBalancer.Host first = host(hostBalancer, FIRST);
+    final HostBalancer.Host second = host(hostBalancer, SECOND);
+
+    first.finished(first.started(), true);
+    first.finished(first.started(), true);
+    assertThat(first.isOpen()).isTrue();
+    assertThat(second.isOpen()).isFalse();
+    for (int i = 0; i < 100; i++) {
+      assertThat(hostBalancer.choose()).isSameAs(second);
+    }
+    assertThat(hostBalancer.failoverFrom(second, new ConnectException())).isNull();
+
+    second.finished(second.started(), true);
+    second.finished(second.started(), true);
+    assertThat(hostBalancer.choose()).isNull();
+  }
+
+  @Test
+  public void idleHostsThatKeepFailingAreNotProbed() throws Exception {
+    final HostBalancer hostBalancer = new HostBalancer(Lists.newArrayList(FIRST, SECOND), 1);
+    final HostBalancer.Host first = host(hostBalancer, FIRST);
+    for (int i = 0; i < 30; i++) {
+      first.finished(first.started(), true);
+    }
+    assertThat(first.getErrorRate()).isGreaterThan(.5);
+
+    Thread.sleep(5);
+    for (int i = 0; i < 100; i++) {
+      assertThat(hostBalancer.choose().getHttpHost()).isEqualTo(SECOND);
+    }
+  }
+
+  private static HostBalancer.Host host(HostBalancer hostBalancer, HttpHost httpHost) {
+    for (HostBalancer.Host host : hostBalancer.getHosts()) {
+      if (host.getHttpHost().equals(httpHost)) {
+        return host;
+      }
+    }
+    throw new IllegalArgumentException(httpHost.toString());
+  }
+}
@@ -0,0 +1,48 @@
+package it.ratelim.client;
+
+import it.ratelim.client.util.Cache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * stand-in distributed cache; expiry is ignored. Sets notify subscribers synchronously
+ */
+class InMemoryCache implements Cache {
+  final Map<String, byte[]> values = new ConcurrentHashMap<>();
+  private final Map<String, List<Runnable>> subscribers = new ConcurrentHashMap<>();
+  volatile boolean closed;
+
+  @Override
+  public byte[] get(String s) {
+    return values.get(s);
+  }
+
+  @Override
+  public void set(String key, int expiryInSeconds, byte[] bytes) {
+    values.put(key, bytes);
+    for (Runnable onChange : subscribers.getOrDefault(key, Collections.emptyList())) {
+      onChange.run();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  @Override
+  public void subscribe(String key, Runnable onChange) {
+    subscribers.computeIfAbsent(key, ignored -> new CopyOnWriteArrayList<>()).add(onChange);
+  }
+
+  @Override
+  public CompletionStage<Boolean> addAsync(String key, int expiryInSeconds, byte[] bytes) {
+    return CompletableFuture.completedFuture(values.putIfAbsent(key, bytes) == null);
+  }
+}
@@ -0,0 +1,34 @@
+package it.ratelim.client;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyReservoirTest {
+
+  @Test
+  public void bucketsCoverEveryValueWithinAQuarter() {
+    for (long value : new long[]{0, 1, 3, 4, 5, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE}) {
+      final int bucket = LatencyReservoir.bucket(value);
+      assertThat(LatencyReservoir.lowerBound(bucket)).isLessThanOrEqualTo(value);
+      assertThat(LatencyReservoir.upperBound(bucket)).isGreaterThanOrEqualTo(value);
+      assertThat((double) LatencyReservoir.upperBound(bucket) - LatencyReservoir.lowerBound(bucket))
+          .isLessThanOrEqualTo(Math.max(1, value * 0.25));
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    LatencyReservoir reservoir = new LatencyReservoir(60000);
+    for (long i = 1; i <= 1000; i++) {
+      reservoir.update(i * 1000);
+    }
+    Snapshot snapshot = reservoir.getSnapshot();
+    assertThat(snapshot.size()).isEqualTo(1000);
+    assertThat(snapshot.getMedian()).isCloseTo(500000, within(125000.0));
+    assertThat(snapshot.get99thPercentile()).isCloseTo(990000, within(250000.0));
+    assertThat(snapshot.getMin()).isLessThanOrEqualTo(snapshot.getMax());
+  }
+}
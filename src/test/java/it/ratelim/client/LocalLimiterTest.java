@@ -0,0 +1,95 @@
+package it.ratelim.client;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import it.ratelim.data.RateLimitProtos;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LocalLimiterTest {
+
+  @Test
+  public void splitsLimitAcrossNodesByPolicyPrefix() {
+    LocalLimiter localLimiter = new LocalLimiter(2);
+    localLimiter.setDefinitions(Lists.newArrayList(RateLimitProtos.LimitDefinition.newBuilder()
+        .setGroup("event:pageload")
+        .setLimit(10)
+        .setPolicyName(RateLimitProtos.LimitResponse.LimitPolicyNames.HOURLY_ROLLING)
+        .build()));
+
+    int passed = 0;
+    for (int i = 0; i < 20; i++) {
+      if (localLimiter.check(request("event:pageload:123", "")).getPassed()) {
+        passed++;
+      }
+    }
+    assertThat(passed).isEqualTo(5);
+
+    final RateLimitProtos.LimitResponse denied = localLimiter.check(request("event:pageload:123", ""));
+    assertThat(denied.getPolicyGroup()).isEqualTo("event:pageload");
+    assertThat(denied.getEnforcedGroup()).isEqualTo("event:pageload:123");
+
+    assertThat(localLimiter.check(request("event:pageload:456", "")).getPassed()).isTrue();
+    assertThat(localLimiter.check(request("event:pageload:123", "other")).getPassed()).isTrue();
+    assertThat(localLimiter.check(request("undefined", "")).getPassed()).isTrue();
+  }
+
+  @Test
+  public void chargesEveryGroupOrNone() {
+    LocalLimiter localLimiter = new LocalLimiter(1);
+    localLimiter.setDefinitions(Lists.newArrayList(
+        RateLimitProtos.LimitDefinition.newBuilder()
+            .setGroup("user")
+            .setLimit(2)
+            .setPolicyName(RateLimitProtos.LimitResponse.LimitPolicyNames.INFINITE)
+            .build(),
+        RateLimitProtos.LimitDefinition.newBuilder()
+            .setGroup("ip")
+            .setLimit(1)
+            .setPolicyName(RateLimitProtos.LimitResponse.LimitPolicyNames.INFINITE)
+            .build()));
+
+    assertThat(localLimiter.check(request("ip", "")).getPassed()).isTrue();
+    final RateLimitProtos.LimitResponse denied = localLimiter.check(RateLimitProtos.LimitRequest.newBuilder()
+        .addGroups("user")
+        .addGroups("ip")
+        .build());
+    assertThat(denied.getPassed()).isFalse();
+    assertThat(denied.getEnforcedGroup()).isEqualTo("ip");
+
+    // user wasn't charged for the denied check
+    assertThat(localLimiter.check(request("user", "")).getPassed()).isTrue();
+    assertThat(localLimiter.check(request("user", "")).getPassed()).isTrue();
+    assertThat(localLimiter.check(request("user", "")).getPassed()).isFalse();
+  }
+
+  @Test
+  public void partitionsByRawBytes() {
+    LocalLimiter localLimiter = new LocalLimiter(1);
+    localLimiter.setDefinitions(Lists.newArrayList(RateLimitProtos.LimitDefinition.newBuilder()
+        .setGroup("user")
+        .setLimit(1)
+        .setPolicyName(RateLimitProtos.LimitResponse.LimitPolicyNames.INFINITE)
+        .build()));
+
+    // neither is valid UTF-8, decoding would turn both into the replacement character
+    final RateLimitProtos.LimitRequest first = RateLimitProtos.LimitRequest.newBuilder()
+        .addGroups("user")
+        .setPartitionKey(ByteString.copyFrom(new byte[]{(byte) 0xff}))
+        .build();
+    final RateLimitProtos.LimitRequest second = first.toBuilder()
+        .setPartitionKey(ByteString.copyFrom(new byte[]{(byte) 0xfe}))
+        .build();
+    assertThat(localLimiter.check(first).getPassed()).isTrue();
+    assertThat(localLimiter.check(second).getPassed()).isTrue();
+    assertThat(localLimiter.check(first).getPassed()).isFalse();
+  }
+
+  private RateLimitProtos.LimitRequest request(String group, String partitionKey) {
+    return RateLimitProtos.LimitRequest.newBuilder()
+        .addGroups(group)
+        .setPartitionKey(ByteString.copyFromUtf8(partitionKey))
+        .build();
+  }
+}
@@ -0,0 +1,39 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PreparedLimitCheckTest {
+
+  @Test
+  public void encodesTheSameBytesAsTheBuilder() throws Exception {
+    final List<byte[]> received = new CopyOnWriteArrayList<>();
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          received.add(bytes);
+          return RateLimitProtos.LimitResponse.newBuilder().setPassed(true).build().toByteArray();
+        });
+         ApiClient client = server.clientBuilder().build()) {
+      final PreparedLimitCheck prepared = client.prepare("pageview:homepage");
+
+      for (int amount : new int[]{2, 127, 128, 300, Integer.MAX_VALUE}) {
+        assertThat(prepared.encode(amount)).isEqualTo(RateLimitProtos.LimitRequest.newBuilder()
+            .addGroups("pageview:homepage")
+            .setAcquireAmount(amount)
+            .build().toByteArray());
+      }
+
+      assertThat(prepared.isPass()).isTrue();
+      assertThat(prepared.isPass()).isTrue();
+      assertThat(prepared.isPass(5)).isTrue();
+      assertThat(received).hasSize(3);
+      assertThat(RateLimitProtos.LimitRequest.parseFrom(received.get(1))).isEqualTo(prepared.getLimitRequest());
+      assertThat(RateLimitProtos.LimitRequest.parseFrom(received.get(2)).getAcquireAmount()).isEqualTo(5);
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package it.ratelim.client;
+
+import it.ratelim.data.RateLimitProtos;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimitedProcessorTest {
+
+  @Test
+  public void requestsOnlyWhatTheLimitAllows() throws Exception {
+    AtomicInteger granted = new AtomicInteger();
+    List<Integer> amounts = new CopyOnWriteArrayList<>();
+    CountDownLatch parked = new CountDownLatch(1);
+    CountDownLatch resumed = new CountDownLatch(1);
+    AtomicLong resetAt = new AtomicLong();
+    AtomicLong resumedAt = new AtomicLong();
+    try (StubRateLimitServer server = new StubRateLimitServer()
+        .handle("limitcheck", bytes -> {
+          final int amount = parse(bytes).getAcquireAmount();
+          final long now = System.currentTimeMillis();
+          if (parked.getCount() == 0) {
+            resumedAt.compareAndSet(0, now);
+            resumed.countDown();
+            return RateLimitProtos.LimitResponse.newBuilder()
+                .setPassed(false)
+                .setLimitResetAt(now + 60000)
+                .build().toByteArray();
+          }
+          amounts.add(amount);
+          final boolean passed = granted.get() + amount <= 10;
+          if (passed) {
+            granted.addAndGet(amount);
+          } else if (amount == 1) {
+            resetAt.set(now + 200);
+            parked.countDown();
+          }
+          return RateLimitProtos.LimitResponse.newBuilder()
+              .setPassed(passed)
+              .setLimitResetAt(amount == 1 ? resetAt.get() : now + 60000)
+              .build().toByteArray();
+        });
+         ApiClient client = server.clientBuilder().build()) {
+
+      RateLimitedProcessor<Integer> throttled = client.throttle("export", 8);
+      new CountingPublisher().subscribe(throttled);
+      List<Integer> received = new CopyOnWriteArrayList<>();
+      throttled.subscribe(new Subscriber<Integer>() {
+        @Override
+        public void onSubscribe(Subscription subscription) {
+          subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(Integer item) {
+          received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+      });
+
+      // every granted token was requested before the single token check that was denied
+      assertThat(parked.await(5, TimeUnit.SECONDS)).isTrue();
+      assertThat(received).hasSize(10);
+      assertThat(amounts).contains(4);
+      // parked until the reset rather than polling
+      assertThat(resumed.await(5, TimeUnit.SECONDS)).isTrue();
+      assertThat(resumedAt.get()).isGreaterThanOrEqualTo(resetAt.get());
+    }
+  }
+
+  @Test
+  public void anEmptyPublisherCompletesASubscriberThatArrivesLater() throws Exception {
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      RateLimitedProcessor<Integer> throttled = new RateLimitedProcessor<>("export", 8,
+          limitRequest -> new CompletableFuture<>(), scheduler);
+      new EmptyPublisher().subscribe(throttled);
+
+      RecordingSubscriber subscriber = new RecordingSubscriber();
+      throttled.subscribe(subscriber);
+      assertThat(subscriber.signals).containsExactly("onSubscribe", "onComplete");
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void aFailedCheckRacingUpstreamCompletionEndsTheStreamOnce() throws Exception {
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      for (int i = 0; i < 200; i++) {
+        final CompletableFuture<RateLimitProtos.LimitResponse> check = new CompletableFuture<>();
+        final RateLimitedProcessor<Integer> throttled = new RateLimitedProcessor<>("export", 8,
+            limitRequest -> check, scheduler);
+        throttled.onSubscribe(new NoopSubscription());
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        // requesting starts the check
+        throttled.subscribe(subscriber);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread failing = new Thread(() -> {
+          awaitQuietly(start);
+          check.completeExceptionally(new IOException("down"));
+        });
+        final Thread completing = new Thread(() -> {
+          awaitQuietly(start);
+          throttled.onComplete();
+          throttled.onError(new IllegalStateException("after complete"));
+        });
+        failing.start();
+        completing.start();
+        start.countDown();
+        failing.join();
+        completing.join();
+
+        assertThat(subscriber.signals).hasSize(2);
+        assertThat(subscriber.signals.get(0)).isEqualTo("onSubscribe");
+        assertThat(subscriber.signals.get(1)).isIn("onComplete", "onError IOException");
+        assertThat(subscriber.overlapped).isFalse();
+      }
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static RateLimitProtos.LimitRequest parse(byte[] bytes) {
+    try {
+      return RateLimitProtos.LimitRequest.parseFrom(bytes);
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * requests everything, and notes each signal and whether any two overlapped
+   */
+  private static class RecordingSubscriber implements Subscriber<Integer> {
+    private final List<String> signals = new CopyOnWriteArrayList<>();
+    private final AtomicInteger inSignal = new AtomicInteger();
+    private volatile boolean overlapped;
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+      record("onSubscribe");
+      subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(Integer item) {
+      record("onNext " + item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      record("onError " + throwable.getClass().getSimpleName());
+    }
+
+    @Override
+    public void onComplete() {
+      record("onComplete");
+    }
+
+    private void record(String signal) {
+      if (inSignal.incrementAndGet() > 1) {
+        overlapped = true;
+      }
+      signals.add(signal);
+      inSignal.decrementAndGet();
+    }
+  }
+
+  private static class NoopSubscription implements Subscription {
+    @Override
+    public void request(long n) {
+    }
+
+    @Override
+    public void cancel() {
+    }
+  }
+
+  /**
+   * completes as soon as it's subscribed to
+   */
+  private static class EmptyPublisher implements Publisher<Integer> {
+    @Override
+    public void subscribe(Subscriber<? super Integer> subscriber) {
+      subscriber.onSubscribe(new NoopSubscription());
+      subscriber.onComplete();
+    }
+  }
+
+  /**
+   * emits 0, 1, 2... synchronously, as many as requested
+   */
+  private static class CountingPublisher implements Publisher<Integer> {
+    @Override
+    public void subscribe(Subscriber<? super Integer> subscriber) {
+      subscriber.onSubscribe(new Subscription() {
+        private int next;
+
+        @Override
+        public void request(long n) {
+          for (long i = 0; i < n; i++) {
+            subscriber.onNext(next++);
+          }
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package it.ratelim.client;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.lambdaworks.redis.RedisClient;
+import com.lambdaworks.redis.api.StatefulRedisConnection;
+import it.ratelim.data.RateLimitProtos;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import redis.embedded.RedisServer;
+
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class RedisLimitEngineTest {
+  private static final long NOW = 1500000000000L;
+
+  private static RedisServer redisServer;
+  private static RedisClient redisClient;
+  private static StatefulRedisConnection<String, String> admin;
+
+  private RedisLimitEngine engine;
+
+  @BeforeClass
+  public static void startRedis() throws Exception {
+    final int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    redisServer = new RedisServer(port);
+    redisServer.start();
+    redisClient = RedisClient.create("redis://localhost:" + port);
+    admin = redisClient.connect();
+  }
+
+  @AfterClass
+  public static void stopRedis() {
+    admin.close();
+    redisClient.shutdown();
+    redisServer.stop();
+  }
+
+  @Before
+  public void setUp() {
+    admin.sync().flushall();
+    DateTimeUtils.setCurrentMillisFixed(NOW);
+    engine = new RedisLimitEngine(redisClient);
+    engine.setDefinitions(Lists.newArrayList(
+        definition("bucket", 2, 1, RateLimitProtos.LimitResponse.LimitPolicyNames.SECONDLY_ROLLING, false),
+        definition("forever", 2, 0, RateLimitProtos.LimitResponse.LimitPolicyNames.INFINITE, false),
+        definition("semaphore", 1, 0, RateLimitProtos.LimitResponse.LimitPolicyNames.MINUTELY_ROLLING, true),
+        definition("pool", 1, 0, RateLimitProtos.LimitResponse.LimitPolicyNames.INFINITE, true),
+        definition("first", 1, 0, RateLimitProtos.LimitResponse.LimitPolicyNames.INFINITE, false),
+        definition("second", 1, 0, RateLimitProtos.LimitResponse.LimitPolicyNames.INFINITE, false)));
+  }
+
+  @After
+  public void tearDown() {
+    DateTimeUtils.setCurrentMillisSystem();
+    engine.close();
+  }
+
+  @Test
+  public void bucketBurstsThenRefills() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      assertThat(check("bucket").getPassed()).isTrue();
+    }
+    final RateLimitProtos.LimitResponse denied = check("bucket");
+    assertThat(denied.getPassed()).isFalse();
+    assertThat(denied.getEnforcedGroup()).isEqualTo("bucket");
+    assertThat(denied.getPolicyGroup()).isEqualTo("bucket");
+    assertThat(denied.getPolicyLimit()).isEqualTo(2);
+    // 2 a second refill one token every 500ms
+    assertThat(denied.getLimitResetAt()).isEqualTo(NOW + 500);
+
+    DateTimeUtils.setCurrentMillisFixed(NOW + 499);
+    assertThat(check("bucket").getPassed()).isFalse();
+    DateTimeUtils.setCurrentMillisFixed(NOW + 500);
+    assertThat(check("bucket").getPassed()).isTrue();
+    assertThat(check("bucket").getPassed()).isFalse();
+
+    // refilling stops at limit + burst
+    DateTimeUtils.setCurrentMillisFixed(NOW + 60000);
+    int passed = 0;
+    while (check("bucket").getPassed()) {
+      passed++;
+    }
+    assertThat(passed).isEqualTo(3);
+  }
+
+  @Test
+  public void infiniteNeverRefills() throws Exception {
+    assertThat(check("forever").getPassed()).isTrue();
+    assertThat(check("forever").getPassed()).isTrue();
+    final RateLimitProtos.LimitResponse denied = check("forever");
+    assertThat(denied.getPassed()).isFalse();
+    assertThat(denied.hasLimitResetAt()).isFalse();
+
+    DateTimeUtils.setCurrentMillisFixed(NOW + TimeUnit.DAYS.toMillis(400));
+    assertThat(check("forever").getPassed()).isFalse();
+    assertThat(admin.sync().pttl("it.ratelim.limit.forever")).isEqualTo(-1L);
+  }
+
+  @Test
+  public void semaphoreAcquiresReturnsAndLapses() throws Exception {
+    final RateLimitProtos.LimitResponse held = check("semaphore");
+    assertThat(held.getPassed()).isTrue();
+    assertThat(held.getEnforcedGroup()).isEqualTo("semaphore");
+    assertThat(held.hasCurrentBucket()).isTrue();
+    assertThat(held.getExpiresAt()).isEqualTo(NOW + 60000);
+
+    final RateLimitProtos.LimitResponse denied = check("semaphore");
+    assertThat(denied.getPassed()).isFalse();
+    assertThat(denied.getLimitResetAt()).isEqualTo(NOW + 60000);
+
+    engine.limitReturn(held).get(1, TimeUnit.SECONDS);
+    final RateLimitProtos.LimitResponse reacquired = check("semaphore");
+    assertThat(reacquired.getPassed()).isTrue();
+
+    // never returned, so it lapses a policy period after acquiring
+    DateTimeUtils.setCurrentMillisFixed(NOW + 59999);
+    assertThat(check("semaphore").getPassed()).isFalse();
+    DateTimeUtils.setCurrentMillisFixed(NOW + 60000);
+    assertThat(check("semaphore").getPassed()).isTrue();
+
+    // returning a lapsed hold doesn't free the one taken since
+    engine.limitReturn(reacquired).get(1, TimeUnit.SECONDS);
+    assertThat(check("semaphore").getPassed()).isFalse();
+  }
+
+  @Test
+  public void returningReleasesEveryReturnableGroup() throws Exception {
+    final RateLimitProtos.LimitResponse held = check("semaphore", "bucket", "pool");
+    assertThat(held.getPassed()).isTrue();
+    assertThat(check("semaphore").getPassed()).isFalse();
+    assertThat(check("pool").getPassed()).isFalse();
+
+    engine.limitReturn(held).get(1, TimeUnit.SECONDS);
+    assertThat(check("semaphore").getPassed()).isTrue();
+    assertThat(check("pool").getPassed()).isTrue();
+    // the returned holder's list is gone, the two holders since have theirs
+    assertThat(admin.sync().keys("it.ratelim.hold.*")).hasSize(2);
+  }
+
+  @Test
+  public void enforcedGroupIsTheGroupAsSent() throws Exception {
+    final ByteString partitionKey = ByteString.copyFromUtf8("user:1");
+    final RateLimitProtos.LimitResponse held = engine.check(request("semaphore").toBuilder()
+        .setPartitionKey(partitionKey)
+        .build()).get(1, TimeUnit.SECONDS);
+    assertThat(held.getEnforcedGroup()).isEqualTo("semaphore");
+
+    RateLimitProtos.LimitResponse denied;
+    do {
+      denied = engine.check(request("forever").toBuilder().setPartitionKey(partitionKey).build()).get(1, TimeUnit.SECONDS);
+    } while (denied.getPassed());
+    assertThat(denied.getEnforcedGroup()).isEqualTo("forever");
+    assertThat(denied.getPolicyGroup()).isEqualTo("forever");
+
+    // the hold was on the partition's semaphore
+    engine.limitReturn(held).get(1, TimeUnit.SECONDS);
+    assertThat(engine.check(request("semaphore").toBuilder().setPartitionKey(partitionKey).build())
+        .get(1, TimeUnit.SECONDS).getPassed()).isTrue();
+  }
+
+  @Test
+  public void groupsAreChargedAllOrNothing() throws Exception {
+    assertThat(check("second").getPassed()).isTrue();
+
+    final RateLimitProtos.LimitResponse denied = check("first", "second");
+    assertThat(denied.getPassed()).isFalse();
+    assertThat(denied.getEnforcedGroup()).isEqualTo("second");
+
+    // first had room but wasn't charged for the denied check
+    assertThat(check("first").getPassed()).isTrue();
+    assertThat(check("first").getPassed()).isFalse();
+  }
+
+  @Test
+  public void groupsWithoutDefinitionPass() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      assertThat(check("undefined").getPassed()).isTrue();
+    }
+  }
+
+  @Test
+  public void failsUntilDefinitionsAreSet() throws Exception {
+    try (RedisLimitEngine unloaded = new RedisLimitEngine(redisClient)) {
+      try {
+        unloaded.check(request("undefined")).get(1, TimeUnit.SECONDS);
+        fail("checked without definitions");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(ShortCircuitException.class);
+      }
+    }
+  }
+
+  @Test
+  public void fallsBackToEvalWhenScriptsAreFlushed() throws Exception {
+    assertThat(check("forever").getPassed()).isTrue();
+    admin.sync().scriptFlush();
+    assertThat(check("forever").getPassed()).isTrue();
+    assertThat(check("forever").getPassed()).isFalse();
+
+    final RateLimitProtos.LimitResponse held = check("semaphore");
+    admin.sync().scriptFlush();
+    engine.limitReturn(held).get(1, TimeUnit.SECONDS);
+    assertThat(check("semaphore").getPassed()).isTrue();
+  }
+
+  private RateLimitProtos.LimitResponse check(String... groups) throws Exception {
+    return engine.check(request(groups)).get(1, TimeUnit.SECONDS);
+  }
+
+  private static RateLimitProtos.LimitRequest request(String... groups) {
+    return RateLimitProtos.LimitRequest.newBuilder()
+        .addAllGroups(Lists.newArrayList(groups))
+        .setAcquireAmount(1)
+        .build();
+  }
+
+  private static RateLimitProtos.LimitDefinition definition(String group, int limit, int burst,
+                                                           RateLimitProtos.LimitResponse.LimitPolicyNames policyName,
+                                                           boolean returnable) {
+    return RateLimitProtos.LimitDefinition.newBuilder()
+        .setGroup(group)
+        .setLimit(limit)
+        .setBurst(burst)
+        .setPolicyName(policyName)
+        .setReturnable(returnable)
+        .build();
+  }
+}
@@ -0,0 +1,263 @@
+package it.ratelim.client;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * in-process stand-in for the ratelim.it api, shared with benchmarks/ and loadtest/ through the test-jar. Each
+ * endpoint maps the posted bytes to the response bytes, and a handler that throws answers 500. Faults add latency,
+ * 503s and dropped connections to those answers; delayed ones are sent from a scheduler instead of sleeping, so
+ * added latency doesn't tie up server threads
+ */
+public class StubRateLimitServer implements Closeable {
+  private final Faults faults;
+  private final HttpServer server;
+  private final ExecutorService handlers;
+  private final ScheduledExecutorService responders;
+  private final LongAdder requestCount = new LongAdder();
+  private final LongAdder notModifiedCount = new LongAdder();
+  private final LongAdder errorCount = new LongAdder();
+  private final LongAdder dropCount = new LongAdder();
+
+  public StubRateLimitServer() throws IOException {
+    this(new Faults());
+  }
+
+  public StubRateLimitServer(Faults faults) throws IOException {
+    this.faults = faults;
+    // without this the jdk server's split header/body writes wait out delayed acks, ~40ms per request
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+    handlers = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("stub-handler-%d").setDaemon(true).build());
+    responders = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder().setNameFormat("stub-responder-%d").setDaemon(true).build());
+    server.setExecutor(handlers);
+    server.start();
+  }
+
+  public StubRateLimitServer handle(String endpoint, Function<byte[], byte[]> handler) {
+    server.createContext("/api/v1/" + endpoint, exchange -> {
+      requestCount.increment();
+      byte[] response;
+      int status = 200;
+      try (InputStream in = exchange.getRequestBody()) {
+        response = handler.apply(ByteStreams.toByteArray(in));
+      } catch (RuntimeException e) {
+        response = new byte[0];
+        status = 500;
+      }
+      final byte[] body = response;
+      final int code = status;
+      final long latencyMicros = faults.sampleLatencyMicros();
+      if (latencyMicros <= 0) {
+        respond(exchange, code, body);
+      } else {
+        responders.schedule(() -> respond(exchange, code, body), latencyMicros, TimeUnit.MICROSECONDS);
+      }
+    });
+    return this;
+  }
+
+  /**
+   * serves body gzipped with an ETag, or a 304 when the client already has it. Faults don't apply
+   */
+  public StubRateLimitServer handleConditional(String endpoint, String etag, byte[] body) {
+    server.createContext("/api/v1/" + endpoint, exchange -> {
+      requestCount.increment();
+      try {
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          notModifiedCount.increment();
+          exchange.sendResponseHeaders(304, -1);
+          return;
+        }
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+          out.write(body);
+        }
+      } finally {
+        exchange.close();
+      }
+    });
+    return this;
+  }
+
+  public Faults getFaults() {
+    return faults;
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public long getRequestCount() {
+    return requestCount.sum();
+  }
+
+  public long getNotModifiedCount() {
+    return notModifiedCount.sum();
+  }
+
+  /**
+   * @return 503s injected by faults
+   */
+  public long getErrorCount() {
+    return errorCount.sum();
+  }
+
+  public long getDropCount() {
+    return dropCount.sum();
+  }
+
+  public ApiClient.Builder clientBuilder() {
+    return new ApiClient.Builder()
+        .setApikey("1|test")
+        .setHost("127.0.0.1")
+        .setPort(getPort());
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    responders.shutdownNow();
+    handlers.shutdownNow();
+  }
+
+  private void respond(HttpExchange exchange, int status, byte[] body) {
+    try {
+      if (faults.drop()) {
+        // closing before any headers are sent drops the connection
+        dropCount.increment();
+        return;
+      }
+      if (faults.error()) {
+        errorCount.increment();
+        status = 503;
+        body = "injected".getBytes();
+      }
+      exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } catch (IOException e) {
+      // the client gave up on it
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * What the stub does to each answer. A latency is drawn from the distribution first; then the request is answered
+   * with a 503 (errorRate), has its connection dropped without any response (dropRate), or is answered as the handler
+   * said. denyRate is for handlers to consult when deciding limit checks. Everything is off by default.
+   */
+  public static class Faults {
+    public enum Distribution {
+      /** always latencyMillis */
+      CONSTANT,
+      /** anywhere from 0 to twice latencyMillis */
+      UNIFORM,
+      /** mean latencyMillis, with a long tail */
+      EXPONENTIAL
+    }
+
+    private long latencyMillis = 0;
+    private Distribution distribution = Distribution.CONSTANT;
+    private double errorRate = 0;
+    private double dropRate = 0;
+    private double denyRate = 0;
+
+    long sampleLatencyMicros() {
+      final long meanMicros = TimeUnit.MILLISECONDS.toMicros(latencyMillis);
+      switch (distribution) {
+        case UNIFORM:
+          return (long) (ThreadLocalRandom.current().nextDouble() * 2 * meanMicros);
+        case EXPONENTIAL:
+          return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanMicros);
+        default:
+          return meanMicros;
+      }
+    }
+
+    boolean error() {
+      return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    boolean drop() {
+      return dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate;
+    }
+
+    public boolean deny() {
+      return denyRate > 0 && ThreadLocalRandom.current().nextDouble() < denyRate;
+    }
+
+    public long getLatencyMillis() {
+      return latencyMillis;
+    }
+
+    public Faults setLatencyMillis(long latencyMillis) {
+      this.latencyMillis = latencyMillis;
+      return this;
+    }
+
+    public Distribution getDistribution() {
+      return distribution;
+    }
+
+    public Faults setDistribution(Distribution distribution) {
+      this.distribution = distribution;
+      return this;
+    }
+
+    public double getErrorRate() {
+      return errorRate;
+    }
+
+    public Faults setErrorRate(double errorRate) {
+      this.errorRate = errorRate;
+      return this;
+    }
+
+    public double getDropRate() {
+      return dropRate;
+    }
+
+    public Faults setDropRate(double dropRate) {
+      this.dropRate = dropRate;
+      return this;
+    }
+
+    public double getDenyRate() {
+      return denyRate;
+    }
+
+    public Faults setDenyRate(double denyRate) {
+      this.denyRate = denyRate;
+      return this;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("latency=%dms %s, errors=%.2f%%, drops=%.2f%%, denies=%.2f%%",
+          latencyMillis, distribution.name().toLowerCase(), errorRate * 100, dropRate * 100, denyRate * 100);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package it.ratelim.client.util;
+
+import com.google.common.hash.Hashing;
+import com.lambdaworks.redis.RedisClient;
+import com.lambdaworks.redis.api.StatefulRedisConnection;
+import com.lambdaworks.redis.pubsub.RedisPubSubAdapter;
+import com.lambdaworks.redis.pubsub.StatefulRedisPubSubConnection;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import redis.embedded.RedisServer;
+
+import java.net.ServerSocket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RedisWrapperTest {
+  private static RedisServer redisServer;
+  private static RedisClient redisClient;
+  private static StatefulRedisConnection<String, String> admin;
+
+  private RedisWrapper redisWrapper;
+
+  @BeforeClass
+  public static void startRedis() throws Exception {
+    final int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    redisServer = new RedisServer(port);
+    redisServer.start();
+    redisClient = RedisClient.create("redis://localhost:" + port);
+    admin = redisClient.connect();
+  }
+
+  @AfterClass
+  public static void stopRedis() {
+    admin.close();
+    redisClient.shutdown();
+    redisServer.stop();
+  }
+
+  @Before
+  public void setUp() {
+    admin.sync().flushall();
+    redisWrapper = new RedisWrapper(redisClient);
+  }
+
+  @After
+  public void tearDown() {
+    redisWrapper.close();
+  }
+
+  @Test
+  public void setsPublishAHashOfTheValueOnTheChangeChannel() throws Exception {
+    final BlockingQueue<String> channels = new LinkedBlockingQueue<>();
+    final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+    final StatefulRedisPubSubConnection<String, byte[]> listener = redisClient.connectPubSub(new BinaryRedisCodec());
+    try {
+      listener.addListener(new RedisPubSubAdapter<String, byte[]>() {
+        @Override
+        public void message(String channel, byte[] message) {
+          channels.add(channel);
+          messages.add(message);
+        }
+      });
+      listener.sync().subscribe("flags.changed");
+
+      redisWrapper.set("flags", 60, new byte[]{1});
+      redisWrapper.setAsync("flags", 60, new byte[]{2}).toCompletableFuture().get(1, TimeUnit.SECONDS);
+      // add stores only if absent, and isn't announced
+      redisWrapper.addAsync("flags", 60, new byte[]{3}).toCompletableFuture().get(1, TimeUnit.SECONDS);
+      redisWrapper.addAsync("other", 60, new byte[]{3}).toCompletableFuture().get(1, TimeUnit.SECONDS);
+
+      assertThat(channels.poll(1, TimeUnit.SECONDS)).isEqualTo("flags.changed");
+      assertThat(messages.poll()).isEqualTo(Hashing.murmur3_128().hashBytes(new byte[]{1}).asBytes());
+      assertThat(channels.poll(1, TimeUnit.SECONDS)).isEqualTo("flags.changed");
+      assertThat(messages.poll()).isEqualTo(Hashing.murmur3_128().hashBytes(new byte[]{2}).asBytes());
+      // the adds published nothing ahead of this
+      redisWrapper.set("flags", 60, new byte[]{4});
+      assertThat(messages.poll(1, TimeUnit.SECONDS)).isEqualTo(Hashing.murmur3_128().hashBytes(new byte[]{4}).asBytes());
+      assertThat(messages).isEmpty();
+    } finally {
+      listener.close();
+    }
+  }
+
+  @Test
+  public void subscribersReadTheNewValueWhenNotified() throws Exception {
+    final BlockingQueue<CompletableFuture<byte[]>> reads = new LinkedBlockingQueue<>();
+    redisWrapper.subscribe("read", () -> reads.add(redisWrapper.getAsync("read").toCompletableFuture()));
+    final RedisWrapper otherNode = new RedisWrapper(redisClient);
+    awaitSubscribers("read.changed", 1);
+
+    try {
+      for (byte value = 1; value <= 20; value++) {
+        otherNode.set("read", 60, new byte[]{value});
+        assertThat(reads.poll(1, TimeUnit.SECONDS).get(1, TimeUnit.SECONDS)).containsExactly(value);
+      }
+    } finally {
+      otherNode.close();
+    }
+  }
+
+  @Test
+  public void subscribersOnlyHearTheirKeyAndOneFailingDoesntStopTheOthers() throws Exception {
+    final BlockingQueue<String> heard = new LinkedBlockingQueue<>();
+    redisWrapper.subscribe("first", () -> {
+      throw new IllegalStateException("boom");
+    });
+    redisWrapper.subscribe("first", () -> heard.add("first"));
+    redisWrapper.subscribe("second", () -> heard.add("second"));
+    awaitSubscribers("first.changed", 1);
+    awaitSubscribers("second.changed", 1);
+
+    redisWrapper.set("first", 60, new byte[]{1});
+    assertThat(heard.poll(1, TimeUnit.SECONDS)).isEqualTo("first");
+    redisWrapper.set("second", 60, new byte[]{1});
+    assertThat(heard.poll(1, TimeUnit.SECONDS)).isEqualTo("second");
+    assertThat(heard).isEmpty();
+  }
+
+  @Test
+  public void closingReleasesThePubSubConnection() throws Exception {
+    redisWrapper.subscribe("closed", () -> {
+    });
+    awaitSubscribers("closed.changed", 1);
+
+    redisWrapper.close();
+    awaitSubscribers("closed.changed", 0);
+  }
+
+  /**
+   * subscribing completes in the background
+   */
+  private static void awaitSubscribers(String channel, long count) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (admin.sync().pubsubNumsub(channel).getOrDefault(channel, 0L) < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(admin.sync().pubsubNumsub(channel)).containsEntry(channel, count);
+  }
+}